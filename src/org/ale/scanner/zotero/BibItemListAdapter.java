@@ -18,10 +18,20 @@
 package org.ale.scanner.zotero;
 
 import java.util.ArrayList;
-
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.ale.scanner.zotero.data.Account;
 import org.ale.scanner.zotero.data.BibItem;
 import org.ale.scanner.zotero.data.BibItemDBHandler;
 import org.ale.scanner.zotero.data.Database;
+import org.ale.scanner.zotero.data.UploadBatch;
+import org.json.JSONObject;
 
 import android.content.ContentResolver;
 import android.content.Context;
@@ -39,16 +49,40 @@ import android.widget.CheckBox;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+/**
+ * The saved items of one account, newest first.
+ *
+ * Only the row ids of the whole list are kept. Items are read from the
+ * database in the background a chunk at a time as their rows come into
+ * view, and drawn as placeholders until then. Only the most recently used
+ * chunks stay in memory, so the list opens just as fast with tens of
+ * thousands of items. Rows are drawn from the items' summary columns,
+ * their JSON is only parsed once a row is expanded.
+ */
 public class BibItemListAdapter extends BaseExpandableListAdapter {
 
     private static final int ACTION_ID = BibItemDBHandler.BIBITEM_ACTION_ID;
     public static final int FOUND_SAVED_ITEMS = ACTION_ID + 0;
     public static final int INSERTED_ITEM = ACTION_ID + 1;
-    public static final int REMOVED_ITEM = ACTION_ID + 2;
+    public static final int REMOVED_ITEMS = ACTION_ID + 2;
     public static final int REPLACED_ITEM = ACTION_ID + 3;
-
-    private ArrayList<BibItem> mItems;
-    private ArrayList<BibDetailJSONAdapter> mAdapters;
+    public static final int LOADED_ITEMS = ACTION_ID + 4;
+
+    // Items are read this many rows at a time
+    private static final int CHUNK_SIZE = 50;
+    // At most this many items, and expanded rows' details, are kept
+    private static final int MAX_LOADED = 4 * CHUNK_SIZE;
+    private static final int MAX_DETAILS = 8;
+
+    // Chunks are read one at a time, in the order they're asked for
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor();
+
+    private int[] mRows; // bibinfo row ids, oldest first so adding is cheap
+    private int mCount;
+    private HashMap<Integer, Integer> mIndex; // Row id -> index in mRows
+    private HashSet<Integer> mPending; // Rows being read
+    private LruMap<Integer, BibItem> mLoaded;
+    private LruMap<Integer, BibDetailJSONAdapter> mDetails;
     private SparseBooleanArray mChecked;
 
     private BibItemDBHandler mHandler;
@@ -74,8 +108,12 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
         mResources = mContext.getResources();
         mInflater = 
             (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        mItems = new ArrayList<BibItem>();
-        mAdapters = new ArrayList<BibDetailJSONAdapter>();
+        mRows = new int[CHUNK_SIZE];
+        mCount = 0;
+        mIndex = new HashMap<Integer, Integer>();
+        mPending = new HashSet<Integer>();
+        mLoaded = new LruMap<Integer, BibItem>(MAX_LOADED);
+        mDetails = new LruMap<Integer, BibDetailJSONAdapter>(MAX_DETAILS);
         mChecked = new SparseBooleanArray();
 
         mHandler = BibItemDBHandler.getInstance();
@@ -84,25 +122,29 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
     public void fillFromDatabase(final int acctId){
         new Thread(new Runnable() {
             public void run(){
-                Cursor c = mContext.getContentResolver()
-                                   .query(Database.BIBINFO_URI,
-                                           null, 
-                                           BibItem.COL_ACCT+"=?",
-                                           new String[] {String.valueOf(acctId)},
-                                           BibItem.COL_DATE + " DESC");
-                if(c.getCount() > 0) {
-                    ArrayList<BibItem> toadd = new ArrayList<BibItem>(c.getCount());
-                    c.moveToFirst();
-                    while(!c.isAfterLast()){
-                        BibItem fc = BibItem.fromCursor(c);
-                        if(fc != null)
-                            toadd.add(fc);
-                        c.moveToNext();
+                // Just the ids, the items themselves are read as they're shown
+                ContentResolver cr = mContext.getContentResolver();
+                Cursor c = cr.query(Database.BIBINFO_URI,
+                                    new String[] {BibItem._ID},
+                                    BibItem.COL_ACCT+"=?",
+                                    new String[] {String.valueOf(acctId)},
+                                    BibItem.COL_DATE + " ASC");
+                int[] rows = new int[c.getCount()];
+                try {
+                    for(int i=0; c.moveToNext(); i++){
+                        rows[i] = c.getInt(0);
                     }
+                } finally {
+                    c.close();
+                }
+                if(rows.length > 0) {
+                    // The first screenful (the newest rows) is read here too
+                    int[] first = new int[Math.min(CHUNK_SIZE, rows.length)];
+                    System.arraycopy(rows, rows.length - first.length, first, 0, first.length);
+                    SavedRows saved = new SavedRows(rows, loadItems(cr, first));
                     mHandler.sendMessage(Message.obtain(mHandler, 
-                                           BibItemListAdapter.FOUND_SAVED_ITEMS, toadd));
+                                           BibItemListAdapter.FOUND_SAVED_ITEMS, saved));
                 }
-                c.close();
             }
         }).start();
     }
@@ -120,12 +162,16 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
     public void deleteItem(final BibItem item){
         if(item.getId() == BibItem.NO_ID) // Item isn't in database
             return;
+        deleteRows(new int[] {item.getId()});
+    }
+
+    private void deleteRows(final int[] rows){
         new Thread(new Runnable() {
             public void run(){
-                mContext.getContentResolver().delete(
-                        Database.BIBINFO_URI, BibItem._ID+"="+item.getId(), null); 
+                mContext.getContentResolver().delete(Database.BIBINFO_URI,
+                        BibItem._ID+" IN ("+UploadBatch.joinRows(rows)+")", null); 
                 mHandler.sendMessage(Message.obtain(mHandler,
-                                    BibItemListAdapter.REMOVED_ITEM, item));
+                                    BibItemListAdapter.REMOVED_ITEMS, rows));
             }
         }).start();
     }
@@ -143,22 +189,25 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
     }
 
     public void deleteItemsWithRowIds(int[] dbid){
-        ArrayList<BibItem> toDelete = new ArrayList<BibItem>(dbid.length);
-        for(int i=0;i<mItems.size(); i++){
-            for(int j=0; j<dbid.length; j++){
-                if(mItems.get(i).getId() == dbid[j]){
-                    toDelete.add(mItems.get(i));
-                }
-            }
-        }
-        for(BibItem item : toDelete){
-            deleteItem(item);
+        int[] present = new int[dbid.length];
+        int n = 0;
+        for(int id : dbid){
+            if(mIndex.containsKey(Integer.valueOf(id)))
+                present[n++] = id;
         }
+        if(n == 0)
+            return;
+        int[] rows = new int[n];
+        System.arraycopy(present, 0, rows, 0, n);
+        deleteRows(rows);
     }
 
     public void clear(){
-        mItems.clear();
-        mAdapters.clear();
+        mCount = 0;
+        mIndex.clear();
+        mPending.clear();
+        mLoaded.clear();
+        mDetails.clear();
         mChecked.clear();
         notifyDataSetChanged();
     }
@@ -169,47 +218,155 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
         // its bibitem list from the DB before finishAddItem is called. In this
         // case, while the database only contains one copy of the bibitem, the
         // list on screen will momentarily (until the next pause) display two.
-        // The bug is avoided here by comparing the ID of the item to add and
-        // that of the top item on the list, and ignoring the add if they match.
-        if((mItems.size() > 0) && (mItems.get(0).getId() == item.getId()))
+        // The bug is avoided here by ignoring items that are already listed.
+        Integer row = Integer.valueOf(item.getId());
+        if(mIndex.containsKey(row))
             return;
 
         shiftUpSelections(0);
-        mItems.add(0, item);
-        mAdapters.add(0, new BibDetailJSONAdapter(
-                              mContext, item.getSelectedInfo()));
+        ensureCapacity(mCount + 1);
+        mRows[mCount] = item.getId();
+        mIndex.put(row, Integer.valueOf(mCount));
+        mCount++;
+        mLoaded.put(row, item);
         notifyDataSetChanged();
     }
 
-    public void finishAddItems(ArrayList<BibItem> items){
-        mItems.addAll(items);
-        for(BibItem b : items){
-            mAdapters.add(new BibDetailJSONAdapter(mContext, b.getSelectedInfo()));
+    public void finishAddItems(SavedRows saved){
+        // Older than anything listed, they go below it
+        int n = saved.mRows.length;
+        ensureCapacity(mCount + n);
+        System.arraycopy(mRows, 0, mRows, n, mCount);
+        System.arraycopy(saved.mRows, 0, mRows, 0, n);
+        mCount += n;
+        reindex(0);
+        for(BibItem b : saved.mItems){
+            mLoaded.put(b.getId(), b);
         }
         notifyDataSetChanged();
     }
 
-    public void finishDeleteItem(BibItem item){
-        int indx = mItems.indexOf(item);
-        if(indx < 0)
+    public void finishDeleteItems(int[] rows){
+        HashSet<Integer> removed = new HashSet<Integer>(rows.length);
+        int[] groups = new int[rows.length];
+        int n = 0;
+        for(int row : rows){
+            int group = groupOfRow(row);
+            if(group >= 0 && removed.add(Integer.valueOf(row)))
+                groups[n++] = group;
+        }
+        if(n == 0)
             return;
 
-        shiftDownSelections(indx);
-        mItems.remove(indx);
-        mAdapters.remove(indx);
+        // From the bottom of the list up, so the positions still hold
+        Arrays.sort(groups, 0, n);
+        for(int i=n-1; i>=0; i--){
+            shiftDownSelections(groups[i]);
+        }
+        int first = mCount - 1 - groups[n-1];
+        int kept = first;
+        for(int i=first; i<mCount; i++){
+            Integer row = Integer.valueOf(mRows[i]);
+            if(removed.contains(row)){
+                mIndex.remove(row);
+                mLoaded.remove(row);
+                mDetails.remove(row);
+            }else{
+                mRows[kept++] = mRows[i];
+            }
+        }
+        mCount = kept;
+        reindex(first);
         notifyDataSetChanged();
     }
 
     public void finishReplaceItem(BibItem item){
-        for(int indx=0; indx<mItems.size(); indx++){
-            if(mItems.get(indx).getId() == item.getId()){
-                mItems.set(indx, item);
-                mAdapters.set(indx, 
-                     new BibDetailJSONAdapter(mContext, item.getSelectedInfo()));
-                notifyDataSetChanged();
-                break;
+        if(!mIndex.containsKey(Integer.valueOf(item.getId())))
+            return;
+        mLoaded.put(item.getId(), item);
+        mDetails.remove(item.getId());
+        notifyDataSetChanged();
+    }
+
+    public void finishLoadItems(SavedRows loaded){
+        for(BibItem b : loaded.mItems){
+            if(mIndex.containsKey(Integer.valueOf(b.getId())))
+                mLoaded.put(b.getId(), b);
+        }
+        for(int id : loaded.mRows){
+            Integer row = Integer.valueOf(id);
+            mPending.remove(row);
+            if(mIndex.containsKey(row) && !mLoaded.containsKey(row)){
+                // Deleted, and the message saying so hasn't arrived yet
+                mLoaded.put(row, new BibItem(id, 0, BibItem.TYPE_ERROR,
+                                    new JSONObject(), Account.NOT_IN_DATABASE));
             }
         }
+        notifyDataSetChanged();
+    }
+
+    // Positions count from the top of the list, mRows from the bottom
+    private int rowAt(int group){
+        return mRows[mCount - 1 - group];
+    }
+
+    private int groupOfRow(int row){
+        Integer indx = mIndex.get(Integer.valueOf(row));
+        return (indx == null) ? -1 : mCount - 1 - indx.intValue();
+    }
+
+    private void reindex(int from){
+        for(int i=from; i<mCount; i++){
+            mIndex.put(Integer.valueOf(mRows[i]), Integer.valueOf(i));
+        }
+    }
+
+    private void ensureCapacity(int size){
+        if(size <= mRows.length)
+            return;
+        int[] grown = new int[Math.max(size, 2 * mRows.length)];
+        System.arraycopy(mRows, 0, grown, 0, mCount);
+        mRows = grown;
+    }
+
+    private void requestChunk(int group){
+        // Reads the rows of the chunk around group that aren't loaded or
+        // on their way, off the UI thread
+        int start = group - (group % CHUNK_SIZE);
+        int end = Math.min(start + CHUNK_SIZE, mCount);
+        int[] wanted = new int[end - start];
+        int n = 0;
+        for(int g=start; g<end; g++){
+            Integer row = Integer.valueOf(rowAt(g));
+            if(!mLoaded.containsKey(row) && mPending.add(row))
+                wanted[n++] = row.intValue();
+        }
+        if(n == 0)
+            return;
+        final int[] rows = new int[n];
+        System.arraycopy(wanted, 0, rows, 0, n);
+        final ContentResolver cr = mContext.getContentResolver();
+        LOADER.execute(new Runnable() {
+            public void run(){
+                SavedRows loaded = new SavedRows(rows, loadItems(cr, rows));
+                mHandler.sendMessage(Message.obtain(mHandler,
+                                       BibItemListAdapter.LOADED_ITEMS, loaded));
+            }
+        });
+    }
+
+    private static ArrayList<BibItem> loadItems(ContentResolver cr, int[] ids){
+        Cursor c = cr.query(Database.BIBINFO_URI, null,
+                BibItem._ID + " IN (" + UploadBatch.joinRows(ids) + ")", null, null);
+        ArrayList<BibItem> items = new ArrayList<BibItem>(c.getCount());
+        try {
+            while(c.moveToNext()){
+                items.add(BibItem.fromCursor(c));
+            }
+        } finally {
+            c.close();
+        }
+        return items;
     }
 
     @SuppressWarnings("deprecation")
@@ -220,7 +377,15 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
             convert = mInflater.inflate(R.layout.expandable_bib_child, parent, false);
         }
         convert.setBackgroundDrawable(getRowDrawable(group));
-        BibDetailJSONAdapter adapter = mAdapters.get(group);
+        Integer row = Integer.valueOf(rowAt(group));
+        BibDetailJSONAdapter adapter = mDetails.get(row);
+        if(adapter == null){
+            BibItem item = (BibItem) getGroup(group);
+            adapter = new BibDetailJSONAdapter(mContext, item.getSelectedInfo());
+            // A placeholder's details are redone once the item is read
+            if(isLoaded(group))
+                mDetails.put(row, adapter);
+        }
         adapter.fillLinearLayout((LinearLayout) convert);
         return convert;
     }
@@ -251,7 +416,13 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
         vtag.tv_checkbox.setTag(Integer.valueOf(group));
         vtag.tv_checkbox.setChecked(mChecked.get(group, false));
 
-        BibItem item = mItems.get(group);
+        BibItem item = (BibItem) getGroup(group);
+        if(!isLoaded(group)){
+            vtag.tv_author_lbl.setText("");
+            vtag.tv_author.setText("");
+            vtag.tv_title.setText(R.string.item_loading);
+            return convert;
+        }
         if(!item.hasCachedValues())
             item.cacheForViews();
 
@@ -269,7 +440,7 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
 
     @Override
     public Object getChild(int group, int child) {
-        return mItems.get(group);
+        return getGroup(group);
     }
 
     @Override
@@ -284,12 +455,29 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
 
     @Override
     public Object getGroup(int group) {
-        return mItems.get(group);
+        int row = rowAt(group);
+        BibItem item = mLoaded.get(Integer.valueOf(row));
+        if(item != null)
+            return item;
+        requestChunk(group);
+        // Stands in until the item has been read
+        return new BibItem(row, 0, BibItem.TYPE_ERROR,
+                           new JSONObject(), Account.NOT_IN_DATABASE);
+    }
+
+    // False while getGroup only has a placeholder for it
+    public boolean isLoaded(int group) {
+        return mLoaded.containsKey(Integer.valueOf(rowAt(group)));
+    }
+
+    // The item's bibinfo row id, without reading the item
+    public int getRowId(int group) {
+        return rowAt(group);
     }
 
     @Override
     public int getGroupCount() {
-        return mItems.size();
+        return mCount;
     }
 
     @Override
@@ -308,7 +496,10 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
     }
 
     public String getTitleOfGroup(int group){
-        String title = mItems.get(group).getCachedTitleString();
+        BibItem item = (BibItem) getGroup(group);
+        if(!item.hasCachedValues())
+            item.cacheForViews();
+        String title = item.getCachedTitleString();
         if(TextUtils.isEmpty(title))
             return mContext.getString(R.string.unknown);
         return title;
@@ -318,7 +509,7 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
     public void shiftDownSelections(int indx){
         // Update selections to reflect removal of an item at indx
         mChecked.delete(indx);
-        for(int key=indx+1; key<mItems.size(); key++){
+        for(int key=indx+1; key<mCount; key++){
             if(mChecked.get(key)){ // All entries in mChecked are set to true
                 mChecked.delete(key);
                 mChecked.put(key-1, true);
@@ -328,7 +519,7 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
 
     public void shiftUpSelections(int indx){
         // Update selections to reflect insertion of item at indx
-        for(int key=mItems.size()-1; key >= indx; key--){
+        for(int key=mCount-1; key >= indx; key--){
             if(mChecked.get(key)){ // All entries in mChecked are set to true
                 mChecked.delete(key);
                 mChecked.put(key+1, true);
@@ -350,6 +541,33 @@ public class BibItemListAdapter extends BaseExpandableListAdapter {
         return result;
     }
 
+    // Row ids read in the background, and the items read along with them
+    public static final class SavedRows {
+        private final int[] mRows;
+        private final ArrayList<BibItem> mItems;
+
+        private SavedRows(int[] rows, ArrayList<BibItem> items){
+            mRows = rows;
+            mItems = items;
+        }
+    }
+
+    // Forgets the least recently used entries past a maximum size
+    private static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+        private final int mMax;
+
+        public LruMap(int max){
+            super(16, 0.75f, true);
+            mMax = max;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest){
+            return size() > mMax;
+        }
+    }
+
     /* View tag */
     protected final class ViewHolder {
         public CheckBox tv_checkbox;
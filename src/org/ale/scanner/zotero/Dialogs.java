@@ -17,9 +17,11 @@
 
 package org.ale.scanner.zotero;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.ale.scanner.zotero.data.Account;
+import org.ale.scanner.zotero.data.CollectionTree;
 import org.ale.scanner.zotero.data.Database;
 
 import android.app.AlertDialog;
@@ -30,12 +32,17 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.net.Uri;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.SparseArray;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.Toast;
 
 
@@ -68,6 +75,8 @@ public class Dialogs {
     protected static final int DIALOG_FOUND_KEYS = 12;
     // Used by ManageAccountsActivity:
     protected static final int DIALOG_RENAME_KEY = 13;
+    // Used by MainActivity:
+    protected static final int DIALOG_SELECT_COLLECTION = 14;
 
 
     protected static int displayedDialog = DIALOG_NO_DIALOG;
@@ -75,6 +84,7 @@ public class Dialogs {
     // Static state
     private static String curSearch = "";
     private static int selection;
+    private static String collectionFilter = "";
 
 
     protected static DialogInterface.OnCancelListener ON_CANCEL = new DialogInterface.OnCancelListener(){
@@ -357,6 +367,94 @@ public class Dialogs {
         return builder.show();
     }
 
+    /**
+     * Lets the user file uploads in a collection of the current library,
+     * either by browsing the tree or by typing the start of a title.
+     *
+     * @param parent    Context
+     * @param tree      The library's collections
+     */
+    protected static AlertDialog showSelectCollectionDialog(
+            final MainActivity parent,
+            final CollectionTree tree) {
+
+        Dialogs.displayedDialog = Dialogs.DIALOG_SELECT_COLLECTION;
+
+        LayoutInflater factory = LayoutInflater.from(parent);
+        final View dview = factory.inflate(R.layout.collection_picker, null);
+        final EditText filter = (EditText) dview.findViewById(R.id.collection_filter);
+        final ListView list = (ListView) dview.findViewById(R.id.collection_list);
+
+        // Keys of the rows shown, null for "No collection"
+        final ArrayList<String> keys = new ArrayList<String>();
+        final ArrayAdapter<String> adapter = new ArrayAdapter<String>(parent,
+                android.R.layout.simple_list_item_1, new ArrayList<String>());
+        // Thousands of rows, notify once per refill rather than per row
+        adapter.setNotifyOnChange(false);
+        list.setAdapter(adapter);
+
+        final Runnable refill = new Runnable(){
+            public void run(){
+                keys.clear();
+                adapter.clear();
+                String prefix = Dialogs.collectionFilter.trim();
+                if(prefix.length() == 0){
+                    keys.add(null);
+                    adapter.add(parent.getString(R.string.no_collection));
+                    for(CollectionTree.Node n : tree.flatten()){
+                        keys.add(n.getKey());
+                        StringBuilder label = new StringBuilder();
+                        for(int i=0; i<n.getDepth(); i++)
+                            label.append("    ");
+                        adapter.add(label.append(n.getTitle()).toString());
+                    }
+                }else{
+                    for(CollectionTree.Node n : tree.search(prefix)){
+                        keys.add(n.getKey());
+                        adapter.add(n.getPath());
+                    }
+                }
+                adapter.notifyDataSetChanged();
+            }
+        };
+
+        // Restores the search after orientation changes
+        filter.append(Dialogs.collectionFilter);
+        filter.addTextChangedListener(new TextWatcher(){
+            public void afterTextChanged(Editable s) {
+                Dialogs.collectionFilter = s.toString();
+                refill.run();
+            }
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) { }
+            public void onTextChanged(CharSequence s, int start, int before, int count) { }
+        });
+        refill.run();
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(parent);
+        builder.setTitle("Select collection");
+        builder.setView(dview);
+        builder.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int i) {
+                Dialogs.collectionFilter = "";
+                Dialogs.displayedDialog = Dialogs.DIALOG_NO_DIALOG;
+            }
+        });
+        builder.setOnCancelListener(ON_CANCEL);
+        final AlertDialog dialog = builder.create();
+
+        list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            public void onItemClick(AdapterView<?> av, View v, int position, long id) {
+                parent.setSelectedCollection(keys.get(position));
+                Dialogs.collectionFilter = "";
+                Dialogs.displayedDialog = Dialogs.DIALOG_NO_DIALOG;
+                dialog.dismiss();
+            }
+        });
+
+        dialog.show();
+        return dialog;
+    }
+
     /**
      * Allows the user to select from a list of available search engines.
      * Currently: Google Books (0), WorldCat (1)
@@ -17,8 +17,9 @@
 
 package org.ale.scanner.zotero;
 
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 
 import org.ale.scanner.zotero.PString;
@@ -26,19 +27,29 @@ import org.ale.scanner.zotero.data.Access;
 import org.ale.scanner.zotero.data.Account;
 import org.ale.scanner.zotero.data.BibItem;
 import org.ale.scanner.zotero.data.BibItemDBHandler;
+import org.ale.scanner.zotero.data.CollectionTree;
 import org.ale.scanner.zotero.data.Database;
 import org.ale.scanner.zotero.data.Group;
+import org.ale.scanner.zotero.data.LibraryItem;
+import org.ale.scanner.zotero.data.LookupCache;
 import org.ale.scanner.zotero.web.APIHandler;
+import org.ale.scanner.zotero.web.LatencyTracker;
+import org.ale.scanner.zotero.web.LookupCoalescer;
+import org.ale.scanner.zotero.web.RequestQueue;
+import org.ale.scanner.zotero.web.ValidatorStore;
 import org.ale.scanner.zotero.web.googlebooks.GoogleBooksAPIClient;
 import org.ale.scanner.zotero.web.worldcat.WorldCatAPIClient;
+import org.ale.scanner.zotero.web.zotero.LibraryVersions;
+import org.ale.scanner.zotero.web.zotero.Outbox;
+import org.ale.scanner.zotero.web.zotero.UploadProgress;
 import org.ale.scanner.zotero.web.zotero.ZoteroAPIClient;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.ActivityNotFoundException;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -90,7 +101,9 @@ public class MainActivity extends Activity {
     public static final String RC_UPLOADING = "UPLOADING";
 
     public static final String PREF_GROUP = "GROUP";
+    public static final String PREF_COLLECTION = "COLLECTION";
     public static final String PREF_SERVICE = "SERVICE";
+    public static final String PREF_HEDGE = "HEDGE";
 
     private ZoteroAPIClient mZAPI;
     private GoogleBooksAPIClient mGoogleBooksAPI;
@@ -117,7 +130,9 @@ public class MainActivity extends Activity {
 
     private SparseArray<PString> mGroups;
     private int mSelectedGroup;
+    private String mSelectedCollection;
     private int mISBNService;
+    private boolean mHedgeLookups;
 
     @Override
     public void onCreate(Bundle state) {
@@ -134,13 +149,18 @@ public class MainActivity extends Activity {
         SharedPreferences prefs = getSharedPreferences(mAccount.getUid(), MODE_PRIVATE);
         // The group we'll upload to (default to user's personal library)
         mSelectedGroup = prefs.getInt(PREF_GROUP, Group.GROUP_LIBRARY);
+        // Collection within that group to file uploads in, if any
+        mSelectedCollection = prefs.getString(PREF_COLLECTION, null);
         mISBNService = prefs.getInt(PREF_SERVICE, SERVICE_GOOGLE);
+        // Whether slow ISBN lookups are raced against the other service
+        mHedgeLookups = prefs.getBoolean(PREF_HEDGE, true);
 
         // Initialize Clients
         mGoogleBooksAPI = new GoogleBooksAPIClient();
         mWorldCatAPI = new WorldCatAPIClient();
         mZAPI = new ZoteroAPIClient();
         mZAPI.setAccount(mAccount);
+        mZAPI.setValidatorStore(ValidatorStore.getInstance(MainActivity.this));
 
         // BibItem list
         ExpandableListView bibItemList = (ExpandableListView) findViewById(R.id.bib_items);
@@ -218,7 +238,9 @@ public class MainActivity extends Activity {
         SharedPreferences config = getSharedPreferences(mAccount.getUid(), MODE_PRIVATE);
         SharedPreferences.Editor editor = config.edit();
         editor.putInt(PREF_GROUP, mSelectedGroup);
+        editor.putString(PREF_COLLECTION, mSelectedCollection);
         editor.putInt(PREF_SERVICE, mISBNService);
+        editor.putBoolean(PREF_HEDGE, mHedgeLookups);
         editor.commit();
     }
 
@@ -242,6 +264,7 @@ public class MainActivity extends Activity {
         }else{
             resetUploadStatus();
         }
+        resumeUploads();
 
         // Lookup account authorizations if necessary
         if(mAccountAccess == null
@@ -276,6 +299,9 @@ public class MainActivity extends Activity {
             mAlertDialog = Dialogs.showSearchEngineDialog(MainActivity.this,
                     mISBNService);
             break;
+        case(Dialogs.DIALOG_SELECT_COLLECTION):
+            showCollectionPicker();
+            break;
         }
     }
 
@@ -313,6 +339,8 @@ public class MainActivity extends Activity {
 
     public void erasePermissions(){
         final int keyid = mAccount.getDbId();
+        // Without the rows a 304 would leave us with nothing
+        ValidatorStore.getInstance(MainActivity.this).remove(mZAPI.getPermissionsURI());
         new Thread(new Runnable(){
             public void run(){
                 getContentResolver().delete(Database.ACCESS_URI,
@@ -334,6 +362,8 @@ public class MainActivity extends Activity {
                                     new String[] {String.valueOf(mAccount.getDbId())},
                                     null);
                 if(c.getCount() == 0) { // Found no permissions
+                    // Nothing cached, so the fetch can't be conditional
+                    ValidatorStore.getInstance(parent).remove(mZAPI.getPermissionsURI());
                     // Will call postAccountPermissions in ZoteroHandler if successful
                     postToUIThread(new Runnable(){
                         public void run() {
@@ -371,6 +401,7 @@ public class MainActivity extends Activity {
                 // in the background.
                 mAccountAccess = perms;
                 loadGroups();
+                syncLibraries();
             }
         }
         });
@@ -433,34 +464,89 @@ public class MainActivity extends Activity {
         }).start();
     }
 
+    public void syncLibraries(){
+        // Brings the collections and item identifiers of every library we
+        // can write to up to date, fetching only what changed since the
+        // last sync.
+        ArrayList<Integer> libraries = new ArrayList<Integer>();
+        if(mAccountAccess.canWriteLibrary())
+            libraries.add(Group.GROUP_LIBRARY);
+        for(Integer gid : mAccountAccess.getGroupIds()){
+            if(mAccountAccess.canWriteGroup(gid))
+                libraries.add(gid);
+        }
+        int acct = mAccount.getDbId();
+        for(Integer lib : libraries){
+            mZAPI.syncCollections(lib, LibraryVersions.get(this, acct, lib));
+            mZAPI.syncIdentifiers(lib, LibraryVersions.get(this, acct, lib,
+                    LibraryVersions.SCOPE_ITEMS));
+        }
+    }
+
     public void bibFetchSuccess(final String isbn, final JSONObject info){
-        if(!mPendingAdapter.hasItem(isbn)){
-            // Item was deleted while pending
-            return;
+        // Every identifier that joined this lookup gets the result, and any
+        // hedged request still racing for it is called off.
+        RequestQueue.getInstance().cancelByTag(LookupCoalescer.keyFor(isbn));
+        boolean first = true;
+        for(String ident : LookupCoalescer.getInstance().complete(isbn)){
+            if(!mPendingAdapter.hasItem(ident)){
+                // Item was deleted while pending
+                continue;
+            }
+            JSONObject copy = info;
+            if(!first){
+                // Items are edited in place, don't let them share
+                try {
+                    copy = new JSONObject(info.toString());
+                } catch (JSONException e) {
+                    continue;
+                }
+            }
+            first = false;
+            BibItem item = new BibItem(BibItem.TYPE_BOOK, copy, mAccount.getDbId());
+            mPendingAdapter.remove(ident);
+            mItemAdapter.addItem(item);
         }
-        BibItem item = new BibItem(BibItem.TYPE_BOOK, info, mAccount.getDbId());
-        mPendingAdapter.remove(isbn);
         if(mPendingAdapter.getCount() == 0) {
             mPendingList.setVisibility(View.GONE);
         }
-        mItemAdapter.addItem(item);
         redrawPendingList();
     }
 
     public void bibFetchFailure(String isbn, Integer status){
-        mPendingAdapter.setStatus(isbn, status);
+        // Nobody is told until every provider racing for it has failed
+        for(String ident : LookupCoalescer.getInstance().fail(isbn)){
+            mPendingAdapter.setStatus(ident, status);
+        }
     }
 
     public void uploadSuccess(int[] dbrows){
-        mItemAdapter.setChecked(new int[0]);
+        // One batch is done, the rest may still be on their way
         mItemAdapter.deleteItemsWithRowIds(dbrows);
-        Toast.makeText(MainActivity.this,
-                       "Items added successfully",
-                       Toast.LENGTH_LONG).show();
-        showUploadButton();
     }
 
-    public void uploadFailure(Integer reason) {
+    public void uploadProgress(UploadProgress progress){
+        if(!progress.isFinished()){
+            if(mUploadState == UPLOAD_STATE_PENDING){
+                TextView output = (TextView) findViewById(R.id.upload_output);
+                output.setText(getString(R.string.upload_progress,
+                        progress.getDone() + progress.getFailed(),
+                        progress.getTotal()));
+            }
+            return;
+        }
+        if(progress.getFailed() > 0){
+            uploadFailure(progress);
+        }else{
+            mItemAdapter.setChecked(new int[0]);
+            Toast.makeText(MainActivity.this,
+                           "Items added successfully",
+                           Toast.LENGTH_LONG).show();
+            showUploadButton();
+        }
+    }
+
+    public void uploadFailure(UploadProgress progress) {
         mUploadState = UPLOAD_STATE_FAILURE;
         ProgressBar prog = (ProgressBar) findViewById(R.id.upload_progress_bar);
         prog.setVisibility(View.GONE);
@@ -469,7 +555,11 @@ public class MainActivity extends Activity {
         error.setVisibility(View.VISIBLE);
 
         TextView output = (TextView) findViewById(R.id.upload_output);
-        output.setText(getText(reason));
+        Integer reason = progress.getLastFailure();
+        if(reason == null)
+            reason = ZoteroAPIClient.FAILURE_REASON_SERV_ERR;
+        output.setText(getString(R.string.upload_failed_items, getText(reason),
+                progress.getFailed(), progress.getTotal()));
     }
 
     public void resetUploadStatus() {
@@ -559,6 +649,9 @@ public class MainActivity extends Activity {
             mAlertDialog = Dialogs.showSelectLibraryDialog(MainActivity.this,
                     mGroups, mSelectedGroup);
             break;
+        case R.id.ctx_collection:
+            showCollectionPicker();
+            break;
         case R.id.ctx_engine:
             mAlertDialog = Dialogs.showSearchEngineDialog(MainActivity.this,
                     mISBNService);
@@ -601,6 +694,8 @@ public class MainActivity extends Activity {
             ExpandableListContextMenuInfo einfo = (ExpandableListContextMenuInfo) item.getMenuInfo();
 
             int index = (int) einfo.id;
+            if(!mItemAdapter.isLoaded(index)) // Still a placeholder
+                break;
             BibItem toEdit = (BibItem) mItemAdapter.getGroup(index);
             Intent intent = new Intent(MainActivity.this, EditItemActivity.class);
             intent.putExtra(EditItemActivity.INTENT_EXTRA_BIBITEM, toEdit);
@@ -613,8 +708,12 @@ public class MainActivity extends Activity {
             break;
         case R.id.ctx_cancel:
             AdapterContextMenuInfo cinfo = (AdapterContextMenuInfo) item.getMenuInfo();
+            String cident = mPendingAdapter.getItem(cinfo.position);
 
-            mPendingAdapter.remove(mPendingAdapter.getItem(cinfo.position));
+            // Only cancel the request if nobody else is waiting on it
+            if(LookupCoalescer.getInstance().leave(cident))
+                RequestQueue.getInstance().cancelByTag(LookupCoalescer.keyFor(cident));
+            mPendingAdapter.remove(cident);
             if(mPendingAdapter.getCount() == 0)
                 mPendingList.setVisibility(View.GONE);
             redrawPendingList();
@@ -624,8 +723,13 @@ public class MainActivity extends Activity {
             String ident = mPendingAdapter.getItem(rinfo.position);
             if(mPendingAdapter.getStatus(ident) != PendingListAdapter.STATUS_LOADING){
                 mPendingAdapter.remove(ident);
-                lookupISBN(ident);
+                // The user asked, so don't trust a cached failure
+                if(ident.length() == 8 && Util.isValidISSN(ident))
+                    lookupISSN(ident, true);
+                else
+                    lookupISBN(ident, true);
             }
+            break;
         default:
             return super.onContextItemSelected(item);
         }
@@ -685,27 +789,104 @@ public class MainActivity extends Activity {
     }
 
     protected void lookupISBN(String isbn){
+        lookupISBN(isbn, false);
+    }
+
+    // refresh skips the cache, and replaces whatever it had
+    protected void lookupISBN(final String isbn, final boolean refresh){
         addToPendingList(isbn);
-        switch(mISBNService){
-        case SERVICE_GOOGLE:
-            mGoogleBooksAPI.isbnLookup(isbn);
-            break;
-        case SERVICE_WORLDCAT:
-            mWorldCatAPI.isbnLookup(isbn);
-            break;
-        }
+        final int service = mISBNService;
+        final String provider = (service == SERVICE_WORLDCAT) ?
+                LookupCache.PROVIDER_WORLDCAT : LookupCache.PROVIDER_GOOGLE_BOOKS;
+        final ContentResolver cr = getContentResolver();
+        new Thread(new Runnable(){
+            public void run() {
+                if(fetchFromCache(cr, isbn, provider, refresh))
+                    return;
+                boolean started = false;
+                switch(service){
+                case SERVICE_GOOGLE:
+                    started = mGoogleBooksAPI.isbnLookup(isbn);
+                    break;
+                case SERVICE_WORLDCAT:
+                    started = mWorldCatAPI.isbnLookup(isbn);
+                    break;
+                }
+                // Whoever started the flight hedges it
+                if(started && mHedgeLookups)
+                    scheduleHedge(isbn, service, provider);
+            }
+        }).start();
+    }
+
+    private void scheduleHedge(final String isbn, final int service, String provider){
+        // If the preferred service hasn't answered by the time it usually
+        // has, ask the other one too. Whichever answers first wins.
+        long delay = LatencyTracker.getInstance().getHedgeDelay(provider);
+        mUIThreadHandler.postDelayed(new Runnable(){
+            public void run() {
+                if(!LookupCoalescer.getInstance().isInFlight(isbn))
+                    return;
+                if(service == SERVICE_GOOGLE)
+                    mWorldCatAPI.hedgeIsbnLookup(isbn);
+                else
+                    mGoogleBooksAPI.hedgeIsbnLookup(isbn);
+            }
+        }, delay);
+    }
+
+    protected void setHedgeLookups(boolean hedge) {
+        mHedgeLookups = hedge;
     }
 
     protected void lookupISSN(String issn){
+        lookupISSN(issn, false);
+    }
+
+    protected void lookupISSN(final String issn, final boolean refresh){
         addToPendingList(issn);
-        //switch(mISBNService){
-        //case SERVICE_GOOGLE:
-        //    mGoogleBooksAPI.isbnLookup(isbn);
-        //    break;
-        //case SERVICE_WORLDCAT:
-        mWorldCatAPI.issnLookup(issn);
-        //    break;
-        //}
+        final ContentResolver cr = getContentResolver();
+        new Thread(new Runnable(){
+            public void run() {
+                if(fetchFromCache(cr, issn, LookupCache.PROVIDER_WORLDCAT, refresh))
+                    return;
+                //switch(mISBNService){
+                //case SERVICE_GOOGLE:
+                //    mGoogleBooksAPI.isbnLookup(isbn);
+                //    break;
+                //case SERVICE_WORLDCAT:
+                mWorldCatAPI.issnLookup(issn);
+                //    break;
+                //}
+            }
+        }).start();
+    }
+
+    private boolean fetchFromCache(ContentResolver cr, final String ident,
+                                   String provider, boolean refresh){
+        // Called off the UI thread. Delivers a cached result, or a cached
+        // failure, if there is one.
+        if(refresh){
+            LookupCache.remove(cr, ident);
+            return false;
+        }
+        final JSONObject[] found = new JSONObject[1];
+        final int result = LookupCache.get(cr, ident, provider, found);
+        if(result == -1)
+            return false;
+        postToUIThread(new Runnable(){
+            public void run() {
+                if(result == LookupCache.RESULT_FOUND){
+                    bibFetchSuccess(ident, found[0]);
+                }else if(result == LookupCache.RESULT_NOT_FOUND){
+                    // It never joined a flight, don't fail someone else's
+                    mPendingAdapter.setStatus(ident, PendingListAdapter.STATUS_NOT_FOUND);
+                }else{
+                    mPendingAdapter.setStatus(ident, PendingListAdapter.STATUS_BAD_REQUEST);
+                }
+            }
+        });
+        return true;
     }
 
 
@@ -714,9 +895,35 @@ public class MainActivity extends Activity {
     }
 
     protected void setSelectedGroup(int gid) {
+        // Collections belong to a library
+        if(gid != mSelectedGroup)
+            mSelectedCollection = null;
         mSelectedGroup = gid;
     }
 
+    protected void setSelectedCollection(String key) {
+        mSelectedCollection = key;
+    }
+
+    private void showCollectionPicker() {
+        final ContentResolver cr = getContentResolver();
+        final int acct = mAccount.getDbId();
+        final int library = mSelectedGroup;
+        new Thread(new Runnable(){
+            public void run() {
+                final CollectionTree tree = CollectionTree.load(cr, acct, library);
+                postToUIThread(new Runnable(){
+                    public void run() {
+                        if(mAlertDialog != null)
+                            mAlertDialog.dismiss();
+                        mAlertDialog = Dialogs.showSelectCollectionDialog(
+                                MainActivity.this, tree);
+                    }
+                });
+            }
+        }).start();
+    }
+
     private final Button.OnClickListener scanIsbn = new Button.OnClickListener() {
         public void onClick(View v) {
             try{
@@ -740,44 +947,116 @@ public class MainActivity extends Activity {
                 return;
             }
 
-            int dest = (mSelectedGroup == Group.GROUP_LIBRARY) ?
+            final int dest = (mSelectedGroup == Group.GROUP_LIBRARY) ?
                     Integer.parseInt(mAccount.getUid()) : mSelectedGroup;
 
-            int[] rows = new int[Math.min(checked.length, ZoteroAPIClient.MAX_UPLOAD_CNT)];
-            JSONObject items = new JSONObject();
-            try {
-                items.put("items", new JSONArray());
-                int row_indx = 0;
-                for(int b=0; b<checked.length; b++){
-                    BibItem bib = (BibItem)mItemAdapter.getGroup(checked[b]);
-                    rows[row_indx] = bib.getId();
-                    items.accumulate("items", bib.getSelectedInfo());
-                    row_indx++;
-                    if(row_indx == ZoteroAPIClient.MAX_UPLOAD_CNT) {
-                        // Upload the batch
-                        mZAPI.addItems(items, rows, dest);
-                        showUploadInProgress();
-                        row_indx = 0;
-                        items = new JSONObject();
+            // Only the row ids, the items needn't be read in
+            final int[] rows = new int[checked.length];
+            for(int b=0; b<checked.length; b++){
+                rows[b] = mItemAdapter.getRowId(checked[b]);
+            }
+            final int candidates = rows.length;
+
+            final ContentResolver cr = getContentResolver();
+            final int acct = mAccount.getDbId();
+            final int library = mSelectedGroup;
+            final String collection = mSelectedCollection;
+            showUploadInProgress();
+            new Thread(new Runnable(){
+                public void run() {
+                    String[][] idents = BibItem.loadIdentifiers(cr, rows);
+                    final int[] toUpload = skipDuplicates(cr, acct, library,
+                            rows, idents, candidates);
+                    final int skipped = candidates - toUpload.length;
+                    if(skipped > 0){
+                        postToUIThread(new Runnable(){
+                            public void run(){
+                                Toast.makeText(MainActivity.this,
+                                        getString(R.string.upload_skipped_duplicates, skipped),
+                                        Toast.LENGTH_LONG).show();
+                                if(toUpload.length == 0)
+                                    showUploadButton();
+                            }
+                        });
+                        if(toUpload.length == 0)
+                            return;
                     }
+                    // Write the batches down before sending anything, so
+                    // they survive the process going away.
+                    Outbox outbox = Outbox.getInstance();
+                    final Outbox.Selection selection =
+                            outbox.add(cr, acct, dest, collection, toUpload);
+                    if(selection.getHeld() > 0){
+                        postToUIThread(new Runnable(){
+                            public void run(){
+                                Toast.makeText(MainActivity.this,
+                                        getString(R.string.upload_held_elsewhere,
+                                                selection.getHeld()),
+                                        Toast.LENGTH_LONG).show();
+                                if(selection.getBatches().isEmpty())
+                                    showUploadButton();
+                            }
+                        });
+                    }
+                    // Only the batches holding this selection are retried
+                    outbox.send(cr, mZAPI, acct, selection.getBatches());
                 }
-                // As long as the batch size isn't perfectly divisible by 50, we
-                // need to upload the remaining items
-                if (checked.length % 50 != 0) {
-                    mZAPI.addItems(items, rows, dest);
-                    showUploadInProgress();
-                }
-            } catch (JSONException e) {
-                // TODO Prompt about failure
-                e.printStackTrace();
-                // Clear the selection
-                mItemAdapter.setChecked(new int[0]);
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-            }
+            }).start();
         }
     };
 
+    private static int[] skipDuplicates(ContentResolver cr, int acct, int library,
+            int[] rows, String[][] idents, int count){
+        // Drops the rows whose ISBN or ISSN is already in the library, or
+        // already on an earlier row. Each distinct identifier is one probe
+        // of the libraryident (acct, library, ident) index, made in chunks
+        // by findExisting. Matching the rows against that is hash lookups.
+        HashSet<String> all = new HashSet<String>();
+        for(int i=0; i<count; i++){
+            for(String id : idents[i])
+                all.add(id);
+        }
+        HashMap<String, String> existing = LibraryItem.findExisting(cr, acct,
+                library, all.toArray(new String[all.size()]));
+
+        HashSet<String> seen = new HashSet<String>();
+        int[] keep = new int[count];
+        int nkeep = 0;
+        for(int i=0; i<count; i++){
+            boolean dup = false;
+            for(String id : idents[i]){
+                if(existing.containsKey(id) || seen.contains(id))
+                    dup = true;
+            }
+            if(dup)
+                continue;
+            for(String id : idents[i])
+                seen.add(id);
+            keep[nkeep++] = rows[i];
+        }
+        int[] result = new int[nkeep];
+        System.arraycopy(keep, 0, result, 0, nkeep);
+        return result;
+    }
+
+    private void resumeUploads() {
+        // Sends batches that were written to the outbox but never
+        // confirmed, e.g. because the process died mid-upload.
+        final ContentResolver cr = getContentResolver();
+        final int acct = mAccount.getDbId();
+        new Thread(new Runnable(){
+            public void run() {
+                if(Outbox.getInstance().drain(cr, mZAPI, acct) > 0){
+                    postToUIThread(new Runnable(){
+                        public void run() {
+                            showUploadInProgress();
+                        }
+                    });
+                }
+            }
+        }).start();
+    }
+
     private final Button.OnClickListener dismissUploadStatus = new Button.OnClickListener() {
         public void onClick(View v) {
             if(mUploadState == UPLOAD_STATE_FAILURE){
@@ -19,6 +19,7 @@ package org.ale.scanner.zotero;
 
 import org.ale.scanner.zotero.data.Account;
 import org.ale.scanner.zotero.data.Database;
+import org.ale.scanner.zotero.web.zotero.LibraryVersions;
 
 import android.app.AlertDialog;
 import android.app.ListActivity;
@@ -113,6 +114,7 @@ public class ManageAccountsActivity extends ListActivity {
         case R.id.ctx_delete:
             String uid = c.getString(Database.ACCOUNT_UID_INDEX);
             Account.purgeAccount(getContentResolver(), row);
+            LibraryVersions.clear(this, row);
             deleteFile(uid); // Delete the user's shared preferences file
 
             updateList();
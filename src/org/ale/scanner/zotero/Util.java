@@ -165,6 +165,23 @@ public class Util {
         return issn + expected;
     }
 
+    public static String isbn10To13(String isbn10){
+        String isbn = "978" + isbn10.substring(0, 9);
+        return isbn + Character.forDigit(checksumEAN13(isbn), 10);
+    }
+
+    public static String canonicalIdentifier(String ident){
+        // One key per work: ISBN-10s become ISBN-13s, ISSN barcodes become
+        // ISSNs. Anything else is left as is, apart from case and hyphens.
+        String id = ident.replaceAll("[\\s-]", "").toUpperCase();
+        if(id.length() == 10 && isValidISBN(id)){
+            return isbn10To13(id);
+        }else if(id.length() == 13 && id.startsWith("977") && isValidISSN(id)){
+            return eanToISSN(id);
+        }
+        return id;
+    }
+
     public static void fillBibTextField(TextView tv, String data){
         Resources res = tv.getResources();
         if(!TextUtils.isEmpty(data)){
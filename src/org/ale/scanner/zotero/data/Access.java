@@ -17,9 +17,11 @@
 
 package org.ale.scanner.zotero.data;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -69,6 +71,14 @@ public class Access implements Parcelable {
         return false;
     }
     
+    public boolean canWriteGroup(int group) {
+        // Groups without their own entry fall under "all groups", if any
+        int idx = indexOf(group);
+        if(idx == -1)
+            idx = indexOf(Group.GROUP_ALL);
+        return idx != -1 && (mPerms[idx] & WRITE) == WRITE;
+    }
+
     public boolean canWrite() {
         for(int i=0; i<mPerms.length; i++){
             if((mPerms[i] & WRITE) == WRITE)
@@ -170,12 +180,32 @@ public class Access implements Parcelable {
         if(mGroups.length > 0){
             ContentValues[] values = new ContentValues[mGroups.length];
             for(int i=0; i<mGroups.length; i++){
-                values[i] = new ContentValues();
-                values[i].put(COL_ACCT, mKeyDbId);
-                values[i].put(COL_GROUP, mGroups[i]);
-                values[i].put(COL_PERMISSION, mPerms[i]);
+                values[i] = toContentValues(i);
             }
             cr.bulkInsert(Database.ACCESS_URI, values);
         }
     }
+
+    // Swaps the key's stored permissions for these in one transaction, so
+    // the table is never seen without them
+    public void replaceInDB(ContentResolver cr) {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newDelete(Database.ACCESS_URI)
+                .withSelection(COL_ACCT + "=?", new String[]{ String.valueOf(mKeyDbId) })
+                .build());
+        for(int i=0; i<mGroups.length; i++){
+            ops.add(ContentProviderOperation.newInsert(Database.ACCESS_URI)
+                    .withValues(toContentValues(i))
+                    .build());
+        }
+        Database.runBatch(cr, ops);
+    }
+
+    private ContentValues toContentValues(int i){
+        ContentValues values = new ContentValues();
+        values.put(COL_ACCT, mKeyDbId);
+        values.put(COL_GROUP, mGroups[i]);
+        values.put(COL_PERMISSION, mPerms[i]);
+        return values;
+    }
 }
@@ -17,6 +17,9 @@
 
 package org.ale.scanner.zotero.data;
 
+import java.util.ArrayList;
+
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -134,11 +137,23 @@ public class Account implements Parcelable, BaseColumns {
         p.writeString(mKey);
     }
 
+    // The account's sync versions are kept elsewhere, see LibraryVersions.clear
     public static void purgeAccount(ContentResolver cr, int row){
         String[] selection = new String[]{String.valueOf(row)};
-        cr.delete(Database.ACCOUNT_URI,Account._ID+"=?", selection);
-        cr.delete(Database.ACCESS_URI, Access.COL_ACCT+"=?", selection);
-        cr.delete(Database.BIBINFO_URI, BibItem.COL_ACCT+"=?", selection);
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newDelete(Database.ACCOUNT_URI)
+                .withSelection(Account._ID+"=?", selection).build());
+        ops.add(ContentProviderOperation.newDelete(Database.ACCESS_URI)
+                .withSelection(Access.COL_ACCT+"=?", selection).build());
+        ops.add(ContentProviderOperation.newDelete(Database.BIBINFO_URI)
+                .withSelection(BibItem.COL_ACCT+"=?", selection).build());
+        ops.add(ContentProviderOperation.newDelete(Database.OUTBOX_URI)
+                .withSelection(UploadBatch.COL_ACCT+"=?", selection).build());
+        ops.add(ContentProviderOperation.newDelete(Database.COLLECTION_URI)
+                .withSelection(Collection.COL_ACCT+"=?", selection).build());
+        ops.add(ContentProviderOperation.newDelete(Database.LIBRARY_IDENT_URI)
+                .withSelection(LibraryItem.COL_ACCT+"=?", selection).build());
+        Database.runBatch(cr, ops);
     }
 
     public static void renameAccount(ContentResolver cr, int row, String name){
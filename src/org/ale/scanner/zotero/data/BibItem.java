@@ -19,6 +19,8 @@ package org.ale.scanner.zotero.data;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -42,6 +44,14 @@ public class BibItem implements BaseColumns, Parcelable {
     public static final String COL_JSON = "json";
     public static final String COL_ACCT = "acct";
 
+    // Summary columns, extracted from the JSON whenever it's written so the
+    // list can be drawn without parsing it
+    public static final String COL_TITLE = "title";
+    public static final String COL_CREATOR_TYPE = "creatortype";
+    public static final String COL_CREATORS = "creators";
+    public static final String COL_ITEM_TYPE = "itemtype";
+    public static final String COL_IDENT = "ident";
+
     public static final int TYPE_ERROR = -1;
     public static final int TYPE_BOOK = 0;
     public static final int TYPE_JOURNAL = 1;
@@ -53,9 +63,11 @@ public class BibItem implements BaseColumns, Parcelable {
     private long mCreationDate;
     private int mType;
     private JSONObject mInfo;
+    private byte[] mPayload; // Until mInfo is needed, for items read from the db
     private int mAcctId;
     private int mSelected;
     
+    private String mCachedCreatorType = null;
     private String mCachedCreatorLabel = null;
     private String mCachedCreatorValue = null;
     private String mCachedTitleValue = null;
@@ -69,6 +81,11 @@ public class BibItem implements BaseColumns, Parcelable {
         mAcctId = acct;
     }
 
+    private BibItem(int id, long date, int type, byte[] payload, int acct){
+        this(id, date, type, (JSONObject) null, acct);
+        mPayload = payload;
+    }
+
     public BibItem(int type, JSONObject json, int acct){
         this(NO_ID, (new Date()).getTime(), type, json, acct);
     }
@@ -83,20 +100,56 @@ public class BibItem implements BaseColumns, Parcelable {
     }
 
     public static BibItem fromCursor(Cursor c){
+        // The JSON is only parsed once something asks for it. Rows written
+        // before the summary columns existed are summarized from it then.
         int id = c.getInt(Database.BIBINFO_ID_INDEX);
         long date = c.getLong(Database.BIBINFO_DATE_INDEX);
         int type = c.getInt(Database.BIBINFO_TYPE_INDEX);
-        String json = c.getString(Database.BIBINFO_JSON_INDEX);
+        byte[] payload = c.getBlob(Database.BIBINFO_JSON_INDEX);
         int acct = c.getInt(Database.BIBINFO_ACCT_INDEX);
 
-        JSONObject data;
+        BibItem item = new BibItem(id, date, type, payload, acct);
+        String title = c.getString(Database.BIBINFO_TITLE_INDEX);
+        if(title != null){
+            item.mCachedTitleValue = title;
+            item.setCachedCreators(c.getString(Database.BIBINFO_CREATOR_TYPE_INDEX),
+                                   c.getString(Database.BIBINFO_CREATORS_INDEX));
+        }
+        return item;
+    }
+
+    // The ISBNs/ISSNs of each row, read straight from the database
+    public static String[][] loadIdentifiers(ContentResolver cr, int[] rows){
+        HashMap<Integer, Integer> positions = new HashMap<Integer, Integer>(rows.length);
+        for(int i=0; i<rows.length; i++){
+            positions.put(Integer.valueOf(rows[i]), Integer.valueOf(i));
+        }
+        String[][] idents = new String[rows.length][];
+        Cursor c = cr.query(Database.BIBINFO_URI,
+                new String[] {BibItem._ID, BibItem.COL_JSON},
+                BibItem._ID + " IN (" + UploadBatch.joinRows(rows) + ")", null, null);
         try {
-            data = new JSONObject(json);
-        } catch (JSONException e) {
-            return null;
+            while(c.moveToNext()){
+                Integer pos = positions.get(Integer.valueOf(c.getInt(0)));
+                String json = Payload.decode(c.getBlob(1));
+                if(json == null)
+                    continue;
+                try {
+                    JSONObject info = new JSONObject(json);
+                    idents[pos.intValue()] = LibraryItem.identifiersOf(info);
+                } catch (JSONException e) {
+                    // Nothing to compare, it'll be uploaded
+                }
+            }
+        } finally {
+            c.close();
+        }
+        // Rows that are gone, or unreadable, have none
+        for(int i=0; i<idents.length; i++){
+            if(idents[i] == null)
+                idents[i] = new String[0];
         }
-        
-        return new BibItem(id,date,type,data,acct);
+        return idents;
     }
 
     /* Parceling */
@@ -126,7 +179,7 @@ public class BibItem implements BaseColumns, Parcelable {
         p.writeInt(mId);
         p.writeLong(mCreationDate);
         p.writeInt(mType);
-        p.writeString(mInfo.toString());
+        p.writeString(getInfo().toString());
         p.writeInt(mAcctId);
         p.writeInt(mSelected); // must be last
     }
@@ -144,9 +197,27 @@ public class BibItem implements BaseColumns, Parcelable {
         mSelected = sel;
     }
 
+    private synchronized JSONObject getInfo(){
+        if(mInfo == null){
+            String json = Payload.decode(mPayload);
+            try {
+                mInfo = (json != null) ? new JSONObject(json) : new JSONObject();
+            } catch (JSONException e) {
+                mInfo = new JSONObject();
+            }
+            mPayload = null;
+        }
+        return mInfo;
+    }
+
+    // False if the stored JSON is garbled or has nothing selected
+    public boolean hasInfo(){
+        return getSelectedInfo().length() > 0;
+    }
+
     public JSONObject getSelectedInfo(){
         try {
-            return mInfo.getJSONArray("items").getJSONObject(mSelected);
+            return getInfo().getJSONArray("items").getJSONObject(mSelected);
         } catch (JSONException e) {
             return new JSONObject();
         }
@@ -155,7 +226,7 @@ public class BibItem implements BaseColumns, Parcelable {
     public BibItem copy() {
         JSONObject jsoncopy;
         try {
-            jsoncopy = new JSONObject(mInfo.toString());
+            jsoncopy = new JSONObject(getInfo().toString());
         } catch (JSONException e) {
             jsoncopy = new JSONObject();
         }
@@ -169,8 +240,45 @@ public class BibItem implements BaseColumns, Parcelable {
         ContentValues values = new ContentValues();
         values.put(BibItem.COL_DATE, mCreationDate);
         values.put(BibItem.COL_TYPE, mType);
-        values.put(BibItem.COL_JSON, mInfo.toString());
         values.put(BibItem.COL_ACCT, mAcctId);
+        values.put(BibItem.COL_JSON, Payload.encode(storedInfo().toString()));
+        values.putAll(summaryValues());
+        return values;
+    }
+
+    // What's written to the database. Lookups return every candidate,
+    // only the selected one is kept.
+    private JSONObject storedInfo(){
+        JSONObject info = getInfo();
+        JSONArray items = info.optJSONArray("items");
+        if(items == null || items.length() <= 1)
+            return info;
+        JSONObject stored = new JSONObject();
+        try {
+            Iterator<?> keys = info.keys();
+            while(keys.hasNext()){
+                String key = (String) keys.next();
+                stored.put(key, info.get(key));
+            }
+            stored.put("items", new JSONArray().put(getSelectedInfo()));
+        } catch (JSONException e) {
+            return info;
+        }
+        return stored;
+    }
+
+    // The summary columns, worked out from the JSON
+    public ContentValues summaryValues(){
+        JSONObject data = getSelectedInfo();
+        cacheForViews();
+        String[] idents = LibraryItem.identifiersOf(data);
+
+        ContentValues values = new ContentValues();
+        values.put(BibItem.COL_TITLE, mCachedTitleValue);
+        values.put(BibItem.COL_CREATOR_TYPE, mCachedCreatorType);
+        values.put(BibItem.COL_CREATORS, mCachedCreatorValue);
+        values.put(BibItem.COL_ITEM_TYPE, data.optString(ItemField.itemType));
+        values.put(BibItem.COL_IDENT, idents.length > 0 ? idents[0] : null);
         return values;
     }
 
@@ -198,6 +306,7 @@ public class BibItem implements BaseColumns, Parcelable {
         JSONObject data = getSelectedInfo();
         mCachedTitleValue = data.optString(ItemField.title);
         mCachedCreatorLabel = null;
+        mCachedCreatorType = "";
 
         JSONArray creators = data.optJSONArray(ItemField.creators);
         if(creators != null && creators.length() > 0){
@@ -209,24 +318,31 @@ public class BibItem implements BaseColumns, Parcelable {
                 jobj = (JSONObject) creators.opt(i);
                 if(jobj == null) continue;
                 String type = jobj.optString(CreatorType.type);
-                if(TextUtils.isEmpty(mCachedCreatorLabel)){
-                    mCachedCreatorLabel = type;
-                }else if(!type.equals(mCachedCreatorLabel)){
+                if(TextUtils.isEmpty(mCachedCreatorType)){
+                    mCachedCreatorType = type;
+                }else if(!type.equals(mCachedCreatorType)){
                     break;
                 }
                 String name = jobj.optString(ItemField.Creator.name);
                 if(!TextUtils.isEmpty(name))
                     creatorNames.add(name);
             }
-            int indx = CreatorType.Book.indexOf(mCachedCreatorLabel);
-            mCachedCreatorLabel = CreatorType.LocalizedBook.get(indx < 0 ? 0 : indx);
-            mCachedCreatorValue = TextUtils.join(", ", creatorNames);
+            setCachedCreators(mCachedCreatorType, TextUtils.join(", ", creatorNames));
         }else{
-            mCachedCreatorLabel = CreatorType.LocalizedBook.get(0);
-            mCachedCreatorValue = "";
+            setCachedCreators("", "");
         }
     }
+
+    private void setCachedCreators(String type, String names){
+        // The label is localized, the stored type isn't
+        mCachedCreatorType = (type == null) ? "" : type;
+        int indx = CreatorType.Book.indexOf(mCachedCreatorType);
+        mCachedCreatorLabel = CreatorType.LocalizedBook.get(indx < 0 ? 0 : indx);
+        mCachedCreatorValue = (names == null) ? "" : names;
+    }
+
     public void clearCache(){
+        mCachedCreatorType = null;
         mCachedCreatorLabel = null;
         mCachedCreatorValue = null;
         mCachedTitleValue = null;
@@ -17,8 +17,6 @@
 
 package org.ale.scanner.zotero.data;
 
-import java.util.ArrayList;
-
 import org.ale.scanner.zotero.BibItemListAdapter;
 
 import android.os.Handler;
@@ -55,22 +53,24 @@ public class BibItemDBHandler extends Handler {
         mAdapter = null;
     }
 
-    @SuppressWarnings("unchecked")
     public void handleMessage(Message msg){
         if(mAdapter != null){
             switch(msg.what) {
             case BibItemListAdapter.FOUND_SAVED_ITEMS:
-                mAdapter.finishAddItems((ArrayList<BibItem>) msg.obj);
+                mAdapter.finishAddItems((BibItemListAdapter.SavedRows) msg.obj);
                 break;
             case BibItemListAdapter.INSERTED_ITEM:
                 mAdapter.finishAddItem((BibItem) msg.obj);
                 break;
-            case BibItemListAdapter.REMOVED_ITEM:
-                mAdapter.finishDeleteItem((BibItem) msg.obj);
+            case BibItemListAdapter.REMOVED_ITEMS:
+                mAdapter.finishDeleteItems((int[]) msg.obj);
                 break;
             case BibItemListAdapter.REPLACED_ITEM:
                 mAdapter.finishReplaceItem((BibItem) msg.obj);
                 break;
+            case BibItemListAdapter.LOADED_ITEMS:
+                mAdapter.finishLoadItems((BibItemListAdapter.SavedRows) msg.obj);
+                break;
             }
         }
     }
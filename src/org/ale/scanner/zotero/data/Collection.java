@@ -17,14 +17,99 @@
 
 package org.ale.scanner.zotero.data;
 
+import java.util.ArrayList;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.provider.BaseColumns;
 
 public class Collection implements BaseColumns {
     public static final String TBL_NAME = "collection";
 
+    public static final String COL_KEY = "key";
+    public static final String COL_LIBRARY = "library";
     public static final String COL_TITLE = "title";
-    public static final String COL_PARENT = "parent";
-    
-    public static final int NO_PARENT = 0;
+    public static final String COL_PARENT = "parent"; // Key, null at the top
+    public static final String COL_VERSION = "version";
+    public static final String COL_ACCT = "acct";
+
+    private int mAcctId; // Account that synced it
+    private String mKey;
+    private int mLibrary; // Group id, or Group.GROUP_LIBRARY
+    private String mTitle;
+    private String mParent;
+    private int mVersion;
+
+    public Collection(int acct, String key, int library, String title,
+                      String parent, int version){
+        mAcctId = acct;
+        mKey = key;
+        mLibrary = library;
+        mTitle = title;
+        mParent = parent;
+        mVersion = version;
+    }
+
+    public int getAccountId(){
+        return mAcctId;
+    }
+
+    public String getKey(){
+        return mKey;
+    }
+
+    public int getLibrary(){
+        return mLibrary;
+    }
+
+    public String getTitle(){
+        return mTitle;
+    }
+
+    public String getParent(){
+        return mParent;
+    }
+
+    public int getVersion(){
+        return mVersion;
+    }
+
+    public ContentValues toContentValues(){
+        ContentValues values = new ContentValues();
+        values.put(Collection.COL_KEY, mKey);
+        values.put(Collection.COL_LIBRARY, mLibrary);
+        values.put(Collection.COL_TITLE, mTitle);
+        values.put(Collection.COL_PARENT, mParent);
+        values.put(Collection.COL_VERSION, mVersion);
+        values.put(Collection.COL_ACCT, mAcctId);
+        return values;
+    }
+
+    // Inserts or replaces (by account, library and key) in one transaction
+    public static void upsert(ContentResolver cr, ArrayList<Collection> collections){
+        ContentValues[] values = new ContentValues[collections.size()];
+        for(int i=0; i<values.length; i++){
+            values[i] = collections.get(i).toContentValues();
+        }
+        cr.bulkInsert(Database.COLLECTION_URI, values);
+    }
 
-}
\ No newline at end of file
+    public static void delete(ContentResolver cr, int acct, int library, String[] keys){
+        if(keys.length == 0)
+            return;
+        StringBuilder where = new StringBuilder();
+        String[] args = new String[keys.length + 2];
+        args[0] = String.valueOf(acct);
+        args[1] = String.valueOf(library);
+        where.append(COL_ACCT).append("=? AND ").append(COL_LIBRARY).append("=? AND ")
+             .append(COL_KEY).append(" IN (");
+        for(int i=0; i<keys.length; i++){
+            if(i > 0)
+                where.append(',');
+            where.append('?');
+            args[i+2] = keys[i];
+        }
+        where.append(')');
+        cr.delete(Database.COLLECTION_URI, where.toString(), args);
+    }
+}
@@ -0,0 +1,236 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+/**
+ * In-memory index of one library's collections.
+ *
+ * Each node links straight to its parent and children, so walking the tree
+ * never goes back to the database, and titles are kept sorted for prefix
+ * search. Build one with load() off the UI thread; after that it's
+ * read-only and cheap to query.
+ */
+public class CollectionTree {
+
+    public static class Node {
+        private final String mKey;
+        private final String mTitle;
+        private final String mSortKey;
+        private Node mParent = null;
+        private final ArrayList<Node> mChildren = new ArrayList<Node>(0);
+        private int mDepth = 0;
+
+        private Node(String key, String title){
+            mKey = key;
+            mTitle = title == null ? "" : title;
+            mSortKey = mTitle.toLowerCase(Locale.getDefault());
+        }
+
+        public String getKey(){
+            return mKey;
+        }
+
+        public String getTitle(){
+            return mTitle;
+        }
+
+        // Null for top level collections
+        public Node getParent(){
+            return mParent;
+        }
+
+        public ArrayList<Node> getChildren(){
+            return mChildren;
+        }
+
+        public int getDepth(){
+            return mDepth;
+        }
+
+        // "Parent / Child", for telling apart collections with the same title
+        public String getPath(){
+            if(mParent == null)
+                return mTitle;
+            return mParent.getPath() + " / " + mTitle;
+        }
+    }
+
+    private static final Comparator<Node> BY_TITLE = new Comparator<Node>(){
+        public int compare(Node a, Node b){
+            return a.mSortKey.compareTo(b.mSortKey);
+        }
+    };
+
+    private final int mLibrary;
+    private final HashMap<String, Node> mByKey;
+    private final ArrayList<Node> mRoots;
+    private final Node[] mByTitle;
+
+    private CollectionTree(int library, HashMap<String, Node> byKey,
+                           ArrayList<Node> roots){
+        mLibrary = library;
+        mByKey = byKey;
+        mRoots = roots;
+        mByTitle = byKey.values().toArray(new Node[byKey.size()]);
+        Arrays.sort(mByTitle, BY_TITLE);
+    }
+
+    // Reads library's collections as synced by acct, see Collection.COL_LIBRARY
+    public static CollectionTree load(ContentResolver cr, int acct, int library){
+        Cursor c = cr.query(Database.COLLECTION_URI,
+                new String[]{Collection.COL_KEY, Collection.COL_TITLE, Collection.COL_PARENT},
+                Collection.COL_ACCT + "=? AND " + Collection.COL_LIBRARY + "=?",
+                new String[]{String.valueOf(acct), String.valueOf(library)}, null);
+        HashMap<String, Node> byKey = new HashMap<String, Node>(c.getCount());
+        HashMap<Node, String> parents = new HashMap<Node, String>();
+        try {
+            while(c.moveToNext()){
+                Node n = new Node(c.getString(0), c.getString(1));
+                byKey.put(n.mKey, n);
+                if(!c.isNull(2))
+                    parents.put(n, c.getString(2));
+            }
+        } finally {
+            c.close();
+        }
+
+        HashMap<Node, Node> parentOf = new HashMap<Node, Node>();
+        for(Node n : byKey.values()){
+            Node parent = byKey.get(parents.get(n));
+            if(parent != null && parent != n)
+                parentOf.put(n, parent);
+        }
+        HashSet<Node> looped = findLoops(byKey.values(), parentOf);
+
+        // Link the nodes up once they all exist. A collection whose parent
+        // we don't have (yet), or that's its own ancestor, is shown at the
+        // top level.
+        ArrayList<Node> roots = new ArrayList<Node>();
+        for(Node n : byKey.values()){
+            Node parent = parentOf.get(n);
+            if(parent == null || looped.contains(n)){
+                roots.add(n);
+            }else{
+                n.mParent = parent;
+                parent.mChildren.add(n);
+            }
+        }
+        Collections.sort(roots, BY_TITLE);
+        for(Node n : byKey.values()){
+            Collections.sort(n.mChildren, BY_TITLE);
+        }
+        setDepths(roots, 0);
+        return new CollectionTree(library, byKey, roots);
+    }
+
+    // The collections whose parents lead back to themselves, e.g. when a
+    // sync stopped halfway through moving one under its own child. Each
+    // node is walked over once.
+    private static HashSet<Node> findLoops(java.util.Collection<Node> nodes,
+                                           HashMap<Node, Node> parentOf){
+        HashSet<Node> looped = new HashSet<Node>();
+        HashSet<Node> done = new HashSet<Node>();
+        for(Node n : nodes){
+            ArrayList<Node> chain = new ArrayList<Node>();
+            HashSet<Node> onChain = new HashSet<Node>();
+            Node cur = n;
+            while(cur != null && !done.contains(cur) && onChain.add(cur)){
+                chain.add(cur);
+                cur = parentOf.get(cur);
+            }
+            // Stopping on a node of this chain means it went round
+            if(cur != null && !done.contains(cur)){
+                for(int i=chain.indexOf(cur); i<chain.size(); i++){
+                    looped.add(chain.get(i));
+                }
+            }
+            done.addAll(chain);
+        }
+        return looped;
+    }
+
+    private static void setDepths(ArrayList<Node> nodes, int depth){
+        for(Node n : nodes){
+            n.mDepth = depth;
+            setDepths(n.mChildren, depth + 1);
+        }
+    }
+
+    public int getLibrary(){
+        return mLibrary;
+    }
+
+    public int size(){
+        return mByKey.size();
+    }
+
+    // Null if there's no such collection in this library
+    public Node get(String key){
+        if(key == null)
+            return null;
+        return mByKey.get(key);
+    }
+
+    public ArrayList<Node> getRoots(){
+        return mRoots;
+    }
+
+    // Every collection, each followed by its children, for showing as a tree
+    public ArrayList<Node> flatten(){
+        ArrayList<Node> out = new ArrayList<Node>(mByKey.size());
+        flatten(mRoots, out);
+        return out;
+    }
+
+    private static void flatten(ArrayList<Node> nodes, ArrayList<Node> out){
+        for(Node n : nodes){
+            out.add(n);
+            flatten(n.mChildren, out);
+        }
+    }
+
+    // Collections whose title starts with prefix (ignoring case), by title
+    public ArrayList<Node> search(String prefix){
+        String p = prefix.toLowerCase(Locale.getDefault());
+        // Binary search for the first title that isn't before the prefix
+        int lo = 0, hi = mByTitle.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(mByTitle[mid].mSortKey.compareTo(p) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        ArrayList<Node> out = new ArrayList<Node>();
+        for(int i=lo; i<mByTitle.length && mByTitle[i].mSortKey.startsWith(p); i++){
+            out.add(mByTitle[i]);
+        }
+        return out;
+    }
+}
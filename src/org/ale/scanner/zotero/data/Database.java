@@ -17,10 +17,25 @@
 
 package org.ale.scanner.zotero.data;
 
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.zip.Deflater;
+
+import org.ale.scanner.zotero.Util;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -28,13 +43,14 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.text.TextUtils;
 
 public class Database extends ContentProvider {
 
     private static final String DBNAME = "s2z.db";
 
-    private static final int DBVERSION = 1;
+    private static final int DBVERSION = 11;
 
     public static final String AUTHORITY = "org.ale.scanner.zotero.data.s2zdatabase";
 
@@ -58,12 +74,25 @@ public class Database extends ContentProvider {
     public static final int BIBINFO_TYPE_INDEX = 2;
     public static final int BIBINFO_JSON_INDEX = 3;
     public static final int BIBINFO_ACCT_INDEX = 4;
+    public static final int BIBINFO_TITLE_INDEX = 5;
+    public static final int BIBINFO_CREATOR_TYPE_INDEX = 6;
+    public static final int BIBINFO_CREATORS_INDEX = 7;
+    public static final int BIBINFO_ITEM_TYPE_INDEX = 8;
+    public static final int BIBINFO_IDENT_INDEX = 9;
 
     private static final String SQL_CREATE_BIBINFO_TBL = 
         "CREATE TABLE IF NOT EXISTS "+BibItem.TBL_NAME+" ("
         +BibItem._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
         +BibItem.COL_DATE+" INTEGER, "+BibItem.COL_TYPE+" INTEGER, "
-        +BibItem.COL_JSON+" BLOB, "+BibItem.COL_ACCT+" INTEGER );";
+        +BibItem.COL_JSON+" BLOB, "+BibItem.COL_ACCT+" INTEGER, "
+        +BibItem.COL_TITLE+" TEXT, "+BibItem.COL_CREATOR_TYPE+" TEXT, "
+        +BibItem.COL_CREATORS+" TEXT, "+BibItem.COL_ITEM_TYPE+" TEXT, "
+        +BibItem.COL_IDENT+" TEXT );";
+
+    // The item list is one account's items, newest first
+    private static final String SQL_CREATE_BIBINFO_IDX = 
+        "CREATE INDEX IF NOT EXISTS "+BibItem.TBL_NAME+"_acct_date ON "
+        +BibItem.TBL_NAME+" ("+BibItem.COL_ACCT+", "+BibItem.COL_DATE+");";
 
     private static final String BIBINFO_BASE_PATH = BibItem.TBL_NAME;
 
@@ -80,14 +109,25 @@ public class Database extends ContentProvider {
 
     /* Collection table constants */
     public static final int COLLECTION_ID_INDEX = 0;
-    public static final int COLLECTION_TITLE_INDEX = 1;
-    public static final int COLLECTION_PARENT_INDEX = 2;
+    public static final int COLLECTION_KEY_INDEX = 1;
+    public static final int COLLECTION_LIBRARY_INDEX = 2;
+    public static final int COLLECTION_TITLE_INDEX = 3;
+    public static final int COLLECTION_PARENT_INDEX = 4;
+    public static final int COLLECTION_VERSION_INDEX = 5;
+    public static final int COLLECTION_ACCT_INDEX = 6;
 
     private static final String SQL_CREATE_COLLECTION_TBL = 
         "CREATE TABLE IF NOT EXISTS "+Collection.TBL_NAME+" ("
-        +Collection._ID + " INTEGER PRIMARY KEY, "
+        +Collection._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+        +Collection.COL_KEY +" TEXT, "
+        +Collection.COL_LIBRARY +" INTEGER, "
         +Collection.COL_TITLE +" TEXT, "
-        +Collection.COL_PARENT +" INTEGER );";
+        +Collection.COL_PARENT +" TEXT, "
+        +Collection.COL_VERSION +" INTEGER, "
+        +Collection.COL_ACCT +" INTEGER, "
+        +"UNIQUE ("+Collection.COL_ACCT+", "+Collection.COL_LIBRARY+", "
+        +Collection.COL_KEY+") "
+        +"ON CONFLICT REPLACE );";
 
     private static final String COLLECTION_BASE_PATH = Collection.TBL_NAME;
 
@@ -102,8 +142,68 @@ public class Database extends ContentProvider {
         +Access.COL_GROUP +" INTEGER, "
         +Access.COL_PERMISSION  +" INTEGER );";
 
+    // Covers the whole table, permissions are only ever read by key
+    private static final String SQL_CREATE_ACCESS_IDX = 
+        "CREATE INDEX IF NOT EXISTS "+Access.TBL_NAME+"_key ON "
+        +Access.TBL_NAME+" ("+Access.COL_ACCT+", "+Access.COL_GROUP+", "
+        +Access.COL_PERMISSION+");";
+
     private static final String ACCESS_BASE_PATH = Access.TBL_NAME;
 
+    /* Lookup cache table constants */
+    private static final String SQL_CREATE_LOOKUP_TBL = 
+        "CREATE TABLE IF NOT EXISTS "+LookupCache.TBL_NAME+" ("
+        +LookupCache._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+        +LookupCache.COL_IDENT + " TEXT, "
+        +LookupCache.COL_PROVIDER + " TEXT, "
+        +LookupCache.COL_JSON + " TEXT, "
+        +LookupCache.COL_FETCHED + " INTEGER, "
+        +LookupCache.COL_ACCESSED + " INTEGER, "
+        +LookupCache.COL_RESULT + " INTEGER DEFAULT 0, "
+        +"UNIQUE ("+LookupCache.COL_IDENT+", "+LookupCache.COL_PROVIDER+") "
+        +"ON CONFLICT REPLACE );";
+
+    private static final String LOOKUP_BASE_PATH = LookupCache.TBL_NAME;
+
+    /* Outbox table constants */
+    private static final String SQL_CREATE_OUTBOX_TBL = 
+        "CREATE TABLE IF NOT EXISTS "+UploadBatch.TBL_NAME+" ("
+        +UploadBatch._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+        +UploadBatch.COL_ACCT + " INTEGER, "
+        +UploadBatch.COL_DEST + " INTEGER, "
+        +UploadBatch.COL_ROWS + " TEXT, "
+        +UploadBatch.COL_TOKEN + " TEXT, "
+        +UploadBatch.COL_STATUS + " INTEGER, "
+        +UploadBatch.COL_CREATED + " INTEGER, "
+        +UploadBatch.COL_COLLECTION + " TEXT );";
+
+    private static final String SQL_CREATE_OUTBOX_IDX = 
+        "CREATE INDEX IF NOT EXISTS "+UploadBatch.TBL_NAME+"_acct ON "
+        +UploadBatch.TBL_NAME+" ("+UploadBatch.COL_ACCT+");";
+
+    private static final String OUTBOX_BASE_PATH = UploadBatch.TBL_NAME;
+
+    /* Library identifier table constants */
+    private static final String SQL_CREATE_LIBRARY_IDENT_TBL = 
+        "CREATE TABLE IF NOT EXISTS "+LibraryItem.TBL_NAME+" ("
+        +LibraryItem._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+        +LibraryItem.COL_ACCT + " INTEGER, "
+        +LibraryItem.COL_LIBRARY + " INTEGER, "
+        +LibraryItem.COL_ITEM + " TEXT, "
+        +LibraryItem.COL_IDENT + " TEXT, "
+        +"UNIQUE ("+LibraryItem.COL_ACCT+", "+LibraryItem.COL_LIBRARY+", "
+        +LibraryItem.COL_ITEM+", "+LibraryItem.COL_IDENT+") "
+        +"ON CONFLICT REPLACE );";
+
+    // Duplicate checks look rows up by identifier, the UNIQUE index above
+    // only helps with deleting an item's rows
+    private static final String SQL_CREATE_LIBRARY_IDENT_IDX = 
+        "CREATE INDEX IF NOT EXISTS "+LibraryItem.TBL_NAME+"_ident ON "
+        +LibraryItem.TBL_NAME+" ("+LibraryItem.COL_ACCT+", "
+        +LibraryItem.COL_LIBRARY+", "+LibraryItem.COL_IDENT+");";
+
+    private static final String LIBRARY_IDENT_BASE_PATH = LibraryItem.TBL_NAME;
+
     /* URI Matching */
     public static final Uri ACCOUNT_URI = 
         Uri.parse("content://" + AUTHORITY + "/" + ACCOUNT_BASE_PATH);
@@ -120,6 +220,15 @@ public class Database extends ContentProvider {
     public static final Uri ACCESS_URI = 
         Uri.parse("content://" + AUTHORITY + "/" + ACCESS_BASE_PATH);
 
+    public static final Uri LOOKUP_URI = 
+        Uri.parse("content://" + AUTHORITY + "/" + LOOKUP_BASE_PATH);
+
+    public static final Uri OUTBOX_URI = 
+        Uri.parse("content://" + AUTHORITY + "/" + OUTBOX_BASE_PATH);
+
+    public static final Uri LIBRARY_IDENT_URI = 
+        Uri.parse("content://" + AUTHORITY + "/" + LIBRARY_IDENT_BASE_PATH);
+
     private static final int ACCOUNT = 1;
     private static final int ACCOUNT_ID = 100;
 
@@ -134,6 +243,13 @@ public class Database extends ContentProvider {
 
     private static final int ACCESS = 5;
 
+    private static final int LOOKUP = 6;
+
+    private static final int OUTBOX = 7;
+    private static final int OUTBOX_ID = 700;
+
+    private static final int LIBRARY_IDENT = 8;
+
     private static final UriMatcher URI_MATCHER;
     static {
         URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
@@ -150,10 +266,21 @@ public class Database extends ContentProvider {
         URI_MATCHER.addURI(AUTHORITY, COLLECTION_BASE_PATH + "/#", COLLECTION_ID);
 
         URI_MATCHER.addURI(AUTHORITY, ACCESS_BASE_PATH, ACCESS);
+
+        URI_MATCHER.addURI(AUTHORITY, LOOKUP_BASE_PATH, LOOKUP);
+
+        URI_MATCHER.addURI(AUTHORITY, OUTBOX_BASE_PATH, OUTBOX);
+        URI_MATCHER.addURI(AUTHORITY, OUTBOX_BASE_PATH + "/#", OUTBOX_ID);
+
+        URI_MATCHER.addURI(AUTHORITY, LIBRARY_IDENT_BASE_PATH, LIBRARY_IDENT);
     }
 
     private DatabaseHelper mSQLiteHelper;
 
+    // URIs changed by the applyBatch running on this thread, if any. They're
+    // notified once it commits rather than once per operation.
+    private final ThreadLocal<HashSet<Uri>> mBatchChanges = new ThreadLocal<HashSet<Uri>>();
+
     @Override
     public String getType(Uri uri) {
         int match = URI_MATCHER.match(uri);
@@ -177,6 +304,14 @@ public class Database extends ContentProvider {
                 return "vnd.android.cursor.item/" + COLLECTION_BASE_PATH;
             case ACCESS:
                 return "vnd.android.cursor.dir/" + ACCESS_BASE_PATH;
+            case LOOKUP:
+                return "vnd.android.cursor.dir/" + LOOKUP_BASE_PATH;
+            case OUTBOX:
+                return "vnd.android.cursor.dir/" + OUTBOX_BASE_PATH;
+            case OUTBOX_ID:
+                return "vnd.android.cursor.item/" + OUTBOX_BASE_PATH;
+            case LIBRARY_IDENT:
+                return "vnd.android.cursor.dir/" + LIBRARY_IDENT_BASE_PATH;
             default:
                 return null;
         }
@@ -221,13 +356,38 @@ public class Database extends ContentProvider {
         final long rowId = db.insert(tbl, null, content);
         if(rowId >=  0){
             Uri noteUri = ContentUris.withAppendedId(uri, rowId);
-            getContext().getContentResolver().notifyChange(noteUri, null);
+            notifyChange(noteUri);
             return noteUri;
         }
 
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mSQLiteHelper.getWritableDatabase();
+        String tbl = getTable(uri);
+
+        // Synced tables take the server's copy over whatever we had
+        int match = URI_MATCHER.match(uri);
+        boolean upsert = (match == GROUP || match == COLLECTION);
+
+        db.beginTransaction();
+        try {
+            for(ContentValues v : values){
+                long rowId = upsert ? db.replace(tbl, null, v)
+                                    : db.insert(tbl, null, v);
+                if(rowId < 0)
+                    throw new SQLException("Failed to insert row into " + uri);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyChange(uri);
+        return values.length;
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         if(values == null)
@@ -246,14 +406,74 @@ public class Database extends ContentProvider {
             selection = whereId;
         }
 
-        return db.update(tbl, values, selection, selectionArgs);
+        int count = db.update(tbl, values, selection, selectionArgs);
+        if(count > 0)
+            notifyChange(uri);
+        return count;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         SQLiteDatabase db = mSQLiteHelper.getWritableDatabase();
         String tbl = getTable(uri);
-        return db.delete(tbl, selection, selectionArgs);
+        int count = db.delete(tbl, selection, selectionArgs);
+        if(count > 0)
+            notifyChange(uri);
+        return count;
+    }
+
+    /**
+     * Applies every operation in one transaction, so either all of them
+     * take effect or none do, and sends one notification per changed URI
+     * once they're committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(
+            ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mSQLiteHelper.getWritableDatabase();
+        HashSet<Uri> changed = new HashSet<Uri>();
+        ContentProviderResult[] results;
+        mBatchChanges.set(changed);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.set(null);
+        }
+        for(Uri uri : changed){
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return results;
+    }
+
+    /**
+     * Runs ops through cr in a single transaction, see applyBatch. Nothing
+     * is written if any of them fails.
+     */
+    public static ContentProviderResult[] runBatch(ContentResolver cr,
+            ArrayList<ContentProviderOperation> ops){
+        try {
+            return cr.applyBatch(AUTHORITY, ops);
+        } catch (RemoteException e) {
+            // Can't happen, the provider runs in our own process
+            throw new SQLException("Batch failed: " + e.getMessage());
+        } catch (OperationApplicationException e) {
+            throw new SQLException("Batch failed: " + e.getMessage());
+        }
+    }
+
+    private void notifyChange(Uri uri){
+        HashSet<Uri> batch = mBatchChanges.get();
+        if(batch != null){
+            // One notification for the table covers every row inserted
+            batch.add(Uri.parse("content://" + AUTHORITY + "/"
+                    + uri.getPathSegments().get(0)));
+        }else{
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
     }
 
     private String getTable(Uri uri) {
@@ -278,6 +498,16 @@ public class Database extends ContentProvider {
             case ACCESS:
                 tbl = Access.TBL_NAME;
                 break;
+            case LOOKUP:
+                tbl = LookupCache.TBL_NAME;
+                break;
+            case OUTBOX:
+            case OUTBOX_ID:
+                tbl = UploadBatch.TBL_NAME;
+                break;
+            case LIBRARY_IDENT:
+                tbl = LibraryItem.TBL_NAME;
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -292,6 +522,9 @@ public class Database extends ContentProvider {
         case GROUP:
         case COLLECTION:
         case ACCESS:
+        case LOOKUP:
+        case OUTBOX:
+        case LIBRARY_IDENT:
             break;
         case ACCOUNT_ID:
             where = Account._ID + "=" + uri.getLastPathSegment();
@@ -305,6 +538,9 @@ public class Database extends ContentProvider {
         case COLLECTION_ID:
             where = Collection._ID + "=" + uri.getLastPathSegment();
             break;
+        case OUTBOX_ID:
+            where = UploadBatch._ID + "=" + uri.getLastPathSegment();
+            break;
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -321,19 +557,224 @@ private class DatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ACCOUNT_TBL);
         db.execSQL(SQL_CREATE_BIBINFO_TBL);
+        db.execSQL(SQL_CREATE_BIBINFO_IDX);
         db.execSQL(SQL_CREATE_GROUP_TBL);
         db.execSQL(SQL_CREATE_COLLECTION_TBL);
         db.execSQL(SQL_CREATE_ACCESS_TBL);
+        db.execSQL(SQL_CREATE_ACCESS_IDX);
+        db.execSQL(SQL_CREATE_LOOKUP_TBL);
+        db.execSQL(SQL_CREATE_OUTBOX_TBL);
+        db.execSQL(SQL_CREATE_OUTBOX_IDX);
+        db.execSQL(SQL_CREATE_LIBRARY_IDENT_TBL);
+        db.execSQL(SQL_CREATE_LIBRARY_IDENT_IDX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + Account.TBL_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + BibItem.TBL_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + Group.TBL_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + Collection.TBL_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + Access.TBL_NAME);
-        onCreate(db);
+        // Step through each version in order, keeping the user's data.
+        // SQLiteOpenHelper runs all of this in one transaction, so a failed
+        // step leaves the database at oldVersion to try again next time.
+        for(int version = oldVersion + 1; version <= newVersion; version++){
+            upgradeTo(db, version);
+        }
+    }
+
+    // Brings a version-1 schema up to version. Tables are created with
+    // their latest columns, so steps that add columns check first.
+    private void upgradeTo(SQLiteDatabase db, int version) {
+        switch(version){
+        case 2:
+            db.execSQL(SQL_CREATE_LOOKUP_TBL);
+            break;
+        case 3:
+            addColumn(db, LookupCache.TBL_NAME, LookupCache.COL_RESULT,
+                    "INTEGER DEFAULT 0");
+            break;
+        case 4:
+            db.execSQL(SQL_CREATE_OUTBOX_TBL);
+            break;
+        case 5:
+            // Keyed by Zotero collection key now. Nothing was ever written
+            // to the old table, so there's nothing to carry over.
+            db.execSQL("DROP TABLE IF EXISTS " + Collection.TBL_NAME);
+            db.execSQL(SQL_CREATE_COLLECTION_TBL);
+            break;
+        case 6:
+            addColumn(db, UploadBatch.TBL_NAME, UploadBatch.COL_COLLECTION, "TEXT");
+            break;
+        case 7:
+            db.execSQL(SQL_CREATE_LIBRARY_IDENT_TBL);
+            db.execSQL(SQL_CREATE_LIBRARY_IDENT_IDX);
+            break;
+        case 8:
+            db.execSQL(SQL_CREATE_BIBINFO_IDX);
+            db.execSQL(SQL_CREATE_ACCESS_IDX);
+            db.execSQL(SQL_CREATE_OUTBOX_IDX);
+            break;
+        case 9:
+            addColumn(db, BibItem.TBL_NAME, BibItem.COL_TITLE, "TEXT");
+            addColumn(db, BibItem.TBL_NAME, BibItem.COL_CREATOR_TYPE, "TEXT");
+            addColumn(db, BibItem.TBL_NAME, BibItem.COL_CREATORS, "TEXT");
+            addColumn(db, BibItem.TBL_NAME, BibItem.COL_ITEM_TYPE, "TEXT");
+            addColumn(db, BibItem.TBL_NAME, BibItem.COL_IDENT, "TEXT");
+            fillBibSummaries(db);
+            break;
+        case 10:
+            compressBibPayloads(db);
+            break;
+        case 11:
+            // Rows belong to an account now, every "My Library" was stored
+            // as the same library before. They're synced again from scratch.
+            db.execSQL("DROP TABLE IF EXISTS " + Collection.TBL_NAME);
+            db.execSQL(SQL_CREATE_COLLECTION_TBL);
+            break;
+        default:
+            throw new IllegalStateException("No upgrade to version " + version);
+        }
+    }
+
+    // Parses each saved item once, so the list never has to. Only knows
+    // rows as they were at version 8, the json column held plain text and
+    // the first item was always the selected one.
+    private void fillBibSummaries(SQLiteDatabase db) {
+        Cursor c = db.query(BibItem.TBL_NAME,
+                new String[] {BibItem._ID, BibItem.COL_JSON},
+                null, null, null, null, null);
+        try {
+            while(c.moveToNext()){
+                db.update(BibItem.TBL_NAME, summarizeV9(c.getString(1)),
+                        BibItem._ID + "=" + c.getInt(0), null);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private ContentValues summarizeV9(String json){
+        JSONObject data = null;
+        try {
+            if(json != null)
+                data = new JSONObject(json).getJSONArray("items").getJSONObject(0);
+        } catch (JSONException e) {
+            // Garbled, summarized as empty
+        }
+        if(data == null)
+            data = new JSONObject();
+
+        // The creators sharing the first one's type
+        String creatorType = "";
+        ArrayList<String> names = new ArrayList<String>();
+        JSONArray creators = data.optJSONArray("creators");
+        for(int i=0; creators != null && i<creators.length(); i++){
+            JSONObject creator = creators.optJSONObject(i);
+            if(creator == null)
+                continue;
+            String type = creator.optString("creatorType");
+            if(creatorType.length() == 0){
+                creatorType = type;
+            }else if(!type.equals(creatorType)){
+                break;
+            }
+            String name = creator.optString("name");
+            if(name.length() > 0)
+                names.add(name);
+        }
+
+        // The first valid ISBN or ISSN
+        String ident = null;
+        for(String field : new String[] {"ISBN", "ISSN"}){
+            for(String part : data.optString(field).split("[\\s,;]+")){
+                if(ident != null || part.length() == 0)
+                    continue;
+                String id = Util.canonicalIdentifier(part);
+                if(Util.isValidISBN(id) || Util.isValidISSN(id))
+                    ident = id;
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(BibItem.COL_TITLE, data.optString("title"));
+        values.put(BibItem.COL_CREATOR_TYPE, creatorType);
+        values.put(BibItem.COL_CREATORS, TextUtils.join(", ", names));
+        values.put(BibItem.COL_ITEM_TYPE, data.optString("itemType"));
+        values.put(BibItem.COL_IDENT, ident);
+        return values;
+    }
+
+    // Rewrites the plain JSON rows of version 9 in the version 1 payload
+    // format, keeping only the selected (first) candidate
+    private void compressBibPayloads(SQLiteDatabase db) {
+        Cursor c = db.query(BibItem.TBL_NAME,
+                new String[] {BibItem._ID, BibItem.COL_JSON},
+                null, null, null, null, null);
+        try {
+            while(c.moveToNext()){
+                byte[] stored = c.getBlob(1);
+                if(stored == null || (stored.length > 0 && stored[0] == 0))
+                    continue; // Nothing there, or already compressed
+                ContentValues values = new ContentValues();
+                values.put(BibItem.COL_JSON, deflateV10(firstCandidateV10(
+                        new String(stored, "UTF-8"))));
+                db.update(BibItem.TBL_NAME, values,
+                        BibItem._ID + "=" + c.getInt(0), null);
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // Every platform has UTF-8
+        } finally {
+            c.close();
+        }
+    }
+
+    private String firstCandidateV10(String json){
+        try {
+            JSONObject info = new JSONObject(json);
+            JSONArray items = info.optJSONArray("items");
+            if(items != null && items.length() > 1)
+                info.put("items", new JSONArray().put(items.get(0)));
+            return info.toString();
+        } catch (JSONException e) {
+            return json; // Kept as it was, it reads as empty either way
+        }
+    }
+
+    // A zero byte, format version 1, the text's length, then the deflated
+    // UTF-8 text. See Payload, which reads it.
+    private byte[] deflateV10(String json) throws UnsupportedEncodingException {
+        byte[] raw = json.getBytes("UTF-8");
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 6);
+        out.write(0);
+        out.write(1);
+        out.write(raw.length >>> 24);
+        out.write(raw.length >>> 16);
+        out.write(raw.length >>> 8);
+        out.write(raw.length);
+        byte[] buf = new byte[1024];
+        try {
+            while(!deflater.finished()){
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private void addColumn(SQLiteDatabase db, String table, String column,
+                           String type) {
+        Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int name = c.getColumnIndex("name");
+            while(c.moveToNext()){
+                if(column.equals(c.getString(name)))
+                    return;
+            }
+        } finally {
+            c.close();
+        }
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
     }
 }
 }
@@ -17,6 +17,8 @@
 
 package org.ale.scanner.zotero.data;
 
+import java.util.ArrayList;
+
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.provider.BaseColumns;
@@ -37,13 +39,42 @@ public class Group implements BaseColumns {
         mTitle = title;
     }
 
-    public void writeToDB(ContentResolver cr){
+    public int getId(){
+        return mId;
+    }
+
+    public ContentValues toContentValues(){
         ContentValues values = new ContentValues();
         values.put(Group._ID, mId);
         values.put(Group.COL_TITLE, mTitle);
-        int rowc = cr.update(Database.GROUP_URI, values, null, null);
+        return values;
+    }
+
+    public void writeToDB(ContentResolver cr){
+        ContentValues values = toContentValues();
+        int rowc = cr.update(Database.GROUP_URI, values, Group._ID + "=?",
+                new String[] { String.valueOf(mId) });
         if(rowc == 0){
             cr.insert(Database.GROUP_URI, values);
         }
     }
+
+    // Inserts or replaces (by id) in one transaction
+    public static void upsert(ContentResolver cr, ArrayList<Group> groups){
+        ContentValues[] values = new ContentValues[groups.size()];
+        for(int i=0; i<values.length; i++){
+            values[i] = groups.get(i).toContentValues();
+        }
+        cr.bulkInsert(Database.GROUP_URI, values);
+    }
+
+    // Forgets the groups missing from a full listing of acct's groups,
+    // unless another account's key can still see them
+    public static int deleteMissing(ContentResolver cr, int acct, int[] listed){
+        String where = Group._ID + " NOT IN (" + UploadBatch.joinRows(listed) + ")"
+            + " AND " + Group._ID + " NOT IN (SELECT " + Access.COL_GROUP
+            + " FROM " + Access.TBL_NAME + " WHERE " + Access.COL_ACCT + "!=?)";
+        return cr.delete(Database.GROUP_URI, where,
+                new String[] { String.valueOf(acct) });
+    }
 }
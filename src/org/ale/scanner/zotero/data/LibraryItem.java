@@ -0,0 +1,193 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.ale.scanner.zotero.Util;
+import org.json.JSONObject;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+/**
+ * The ISBNs and ISSNs of the items already in a Zotero library, kept so
+ * uploads can be checked for duplicates without asking the server.
+ *
+ * There's one row per item and canonical identifier, indexed by identifier.
+ * Rows belong to the account that synced them, since every account has its
+ * own "My Library". None of the static methods should be called on the UI
+ * thread.
+ */
+public class LibraryItem implements BaseColumns {
+    public static final String TBL_NAME = "libraryident";
+
+    public static final String COL_ACCT = "acct";
+    public static final String COL_LIBRARY = "library";
+    public static final String COL_ITEM = "item"; // Zotero item key
+    public static final String COL_IDENT = "ident";
+
+    // SQLite allows 999 host parameters per statement
+    private static final int MAX_ARGS = 500;
+
+    private static final String[] PROJECTION = {COL_IDENT, COL_ITEM};
+
+    private String mKey;
+    private String[] mIdentifiers;
+
+    public LibraryItem(String key, String[] identifiers){
+        mKey = key;
+        mIdentifiers = identifiers;
+    }
+
+    public String getKey(){
+        return mKey;
+    }
+
+    public String[] getIdentifiers(){
+        return mIdentifiers;
+    }
+
+    public static String[] identifiersOf(JSONObject info){
+        // ISBN and ISSN fields may hold several numbers, e.g. the ISBN-10
+        // and ISBN-13 of the same edition. Anything that doesn't check out
+        // is ignored, a garbled number can't be matched anyway.
+        ArrayList<String> result = new ArrayList<String>();
+        for(String field : new String[]{ItemField.ISBN, ItemField.ISSN}){
+            String value = info.optString(field);
+            if(TextUtils.isEmpty(value))
+                continue;
+            for(String part : value.split("[\\s,;]+")){
+                if(part.length() == 0)
+                    continue;
+                String id = Util.canonicalIdentifier(part);
+                if((Util.isValidISBN(id) || Util.isValidISSN(id))
+                        && !result.contains(id)){
+                    result.add(id);
+                }
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Stores what a sync returned for these items, dropping whatever they
+     * were indexed under before, in one transaction. Items without
+     * identifiers just lose their old rows. With clearFirst every row of
+     * the library goes, for the first page of a sync from scratch.
+     */
+    public static void replace(ContentResolver cr, int acct, int library,
+                               ArrayList<LibraryItem> items, boolean clearFirst){
+        Database.runBatch(cr, replaceOps(acct, library, items, clearFirst));
+    }
+
+    // replace() as operations, for running with others
+    public static ArrayList<ContentProviderOperation> replaceOps(int acct,
+            int library, ArrayList<LibraryItem> items, boolean clearFirst){
+        String[] keys = new String[items.size()];
+        for(int i=0; i<keys.length; i++){
+            keys[i] = items.get(i).mKey;
+        }
+        ArrayList<ContentProviderOperation> ops;
+        if(clearFirst){
+            ops = new ArrayList<ContentProviderOperation>();
+            ops.add(ContentProviderOperation.newDelete(Database.LIBRARY_IDENT_URI)
+                    .withSelection(COL_ACCT + "=? AND " + COL_LIBRARY + "=?",
+                            new String[]{String.valueOf(acct), String.valueOf(library)})
+                    .build());
+        }else{
+            ops = deletions(acct, library, keys);
+        }
+        for(LibraryItem item : items){
+            for(String ident : item.mIdentifiers){
+                ContentValues v = new ContentValues();
+                v.put(COL_ACCT, acct);
+                v.put(COL_LIBRARY, library);
+                v.put(COL_ITEM, item.mKey);
+                v.put(COL_IDENT, ident);
+                ops.add(ContentProviderOperation.newInsert(Database.LIBRARY_IDENT_URI)
+                        .withValues(v).build());
+            }
+        }
+        return ops;
+    }
+
+    public static void delete(ContentResolver cr, int acct, int library, String[] keys){
+        Database.runBatch(cr, deletions(acct, library, keys));
+    }
+
+    private static ArrayList<ContentProviderOperation> deletions(int acct,
+            int library, String[] keys){
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for(int start=0; start<keys.length; start+=MAX_ARGS){
+            int count = Math.min(MAX_ARGS, keys.length - start);
+            String[] args = new String[count + 2];
+            args[0] = String.valueOf(acct);
+            args[1] = String.valueOf(library);
+            System.arraycopy(keys, start, args, 2, count);
+            ops.add(ContentProviderOperation.newDelete(Database.LIBRARY_IDENT_URI)
+                    .withSelection(inClause(COL_ITEM, count), args).build());
+        }
+        return ops;
+    }
+
+    /**
+     * Maps each of idents already in the library to the key of an item
+     * that has it. Each identifier costs one probe of the ident index, and
+     * the lot is looked up in as few queries as possible.
+     */
+    public static HashMap<String, String> findExisting(ContentResolver cr,
+            int acct, int library, String[] idents){
+        HashMap<String, String> found = new HashMap<String, String>();
+        for(int start=0; start<idents.length; start+=MAX_ARGS){
+            int count = Math.min(MAX_ARGS, idents.length - start);
+            String[] args = new String[count + 2];
+            args[0] = String.valueOf(acct);
+            args[1] = String.valueOf(library);
+            System.arraycopy(idents, start, args, 2, count);
+            Cursor c = cr.query(Database.LIBRARY_IDENT_URI, PROJECTION,
+                                inClause(COL_IDENT, count), args, null);
+            try {
+                while(c.moveToNext()){
+                    found.put(c.getString(0), c.getString(1));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return found;
+    }
+
+    private static String inClause(String column, int count){
+        StringBuilder where = new StringBuilder();
+        where.append(COL_ACCT).append("=? AND ")
+             .append(COL_LIBRARY).append("=? AND ")
+             .append(column).append(" IN (");
+        for(int i=0; i<count; i++){
+            if(i > 0)
+                where.append(',');
+            where.append('?');
+        }
+        return where.append(')').toString();
+    }
+}
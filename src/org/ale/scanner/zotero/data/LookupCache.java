@@ -0,0 +1,227 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.data;
+
+import org.ale.scanner.zotero.Util;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.provider.BaseColumns;
+
+/**
+ * On-disk cache of translated lookup results, shared by all accounts.
+ *
+ * Entries are keyed by canonical identifier and provider. They expire after
+ * a time-to-live, and once the table is full the least recently used entries
+ * are evicted. Failed lookups (not found, invalid) are remembered too, for a
+ * shorter time. None of these methods should be called on the UI thread.
+ */
+public class LookupCache implements BaseColumns {
+    public static final String TBL_NAME = "lookupcache";
+
+    public static final String COL_IDENT = "ident";
+    public static final String COL_PROVIDER = "provider";
+    public static final String COL_JSON = "json";
+    public static final String COL_FETCHED = "fetched";
+    public static final String COL_ACCESSED = "accessed";
+    public static final String COL_RESULT = "result";
+
+    // Values of COL_RESULT
+    public static final int RESULT_FOUND = 0;
+    public static final int RESULT_NOT_FOUND = 1;
+    public static final int RESULT_INVALID = 2;
+
+    public static final String PROVIDER_GOOGLE_BOOKS = "googlebooks";
+    public static final String PROVIDER_WORLDCAT = "worldcat";
+
+    public static final long DEFAULT_TTL = 30L * 24 * 60 * 60 * 1000; // 30 days
+    public static final long DEFAULT_NEGATIVE_TTL = 24L * 60 * 60 * 1000; // 1 day
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final String[] PROJECTION = {_ID, COL_JSON, COL_FETCHED, COL_RESULT};
+
+    private static final String WHERE_KEY = COL_IDENT + "=? AND " + COL_PROVIDER + "=?";
+
+    private static long sTTL = DEFAULT_TTL;
+    private static long sNegativeTTL = DEFAULT_NEGATIVE_TTL;
+    private static int sMaxEntries = DEFAULT_MAX_ENTRIES;
+
+    private static int sHits = 0;
+    private static int sNegativeHits = 0;
+    private static int sMisses = 0;
+
+    public static synchronized void setTimeToLive(long millis){
+        sTTL = millis;
+    }
+
+    public static synchronized long getTimeToLive(){
+        return sTTL;
+    }
+
+    public static synchronized void setNegativeTimeToLive(long millis){
+        sNegativeTTL = millis;
+    }
+
+    public static synchronized long getNegativeTimeToLive(){
+        return sNegativeTTL;
+    }
+
+    public static synchronized void setMaxEntries(int max){
+        sMaxEntries = max;
+    }
+
+    public static synchronized int getMaxEntries(){
+        return sMaxEntries;
+    }
+
+    /* Statistics */
+    public static synchronized int getHits(){
+        return sHits;
+    }
+
+    public static synchronized int getNegativeHits(){
+        return sNegativeHits;
+    }
+
+    public static synchronized int getMisses(){
+        return sMisses;
+    }
+
+    public static synchronized void resetStats(){
+        sHits = 0;
+        sNegativeHits = 0;
+        sMisses = 0;
+    }
+
+    private static synchronized void count(int result){
+        if(result == -1)
+            sMisses++;
+        else if(result == RESULT_FOUND)
+            sHits++;
+        else
+            sNegativeHits++;
+    }
+
+    /**
+     * Looks up a fresh entry. Returns RESULT_FOUND and puts the translation
+     * in found[0], returns one of the failure results, or returns -1 if
+     * there is no fresh entry.
+     */
+    public static int get(ContentResolver cr, String ident, String provider,
+                          JSONObject[] found){
+        String[] args = {Util.canonicalIdentifier(ident), provider};
+        Cursor c = cr.query(Database.LOOKUP_URI, PROJECTION, WHERE_KEY, args, null);
+        int result = -1;
+        long rowId = -1;
+        try {
+            if(c.moveToFirst()){
+                rowId = c.getLong(0);
+                int cached = c.getInt(3);
+                long ttl = (cached == RESULT_FOUND) ?
+                        getTimeToLive() : getNegativeTimeToLive();
+                long age = System.currentTimeMillis() - c.getLong(2);
+                if(age >= 0 && age < ttl){
+                    if(cached != RESULT_FOUND){
+                        result = cached;
+                    }else{
+                        try {
+                            found[0] = new JSONObject(c.getString(1));
+                            result = RESULT_FOUND;
+                        } catch (JSONException e) {
+                            result = -1;
+                        }
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        if(result != -1){
+            ContentValues values = new ContentValues();
+            values.put(COL_ACCESSED, System.currentTimeMillis());
+            cr.update(Database.LOOKUP_URI, values, _ID + "=" + rowId, null);
+        }else if(rowId != -1){
+            // Stale or unreadable
+            cr.delete(Database.LOOKUP_URI, _ID + "=" + rowId, null);
+        }
+        count(result);
+        return result;
+    }
+
+    // Returns the cached translation, or null if there is no fresh one.
+    public static JSONObject get(ContentResolver cr, String ident, String provider){
+        JSONObject[] found = new JSONObject[1];
+        get(cr, ident, provider, found);
+        return found[0];
+    }
+
+    public static void put(ContentResolver cr, String ident, String provider, String json){
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(COL_IDENT, Util.canonicalIdentifier(ident));
+        values.put(COL_PROVIDER, provider);
+        values.put(COL_JSON, json);
+        values.put(COL_FETCHED, now);
+        values.put(COL_ACCESSED, now);
+        values.put(COL_RESULT, RESULT_FOUND);
+        // (ident, provider) is unique, so this replaces any old entry
+        cr.insert(Database.LOOKUP_URI, values);
+        trim(cr);
+    }
+
+    // Remembers that a lookup failed for good, result is RESULT_NOT_FOUND
+    // or RESULT_INVALID.
+    public static void putFailure(ContentResolver cr, String ident, String provider, int result){
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(COL_IDENT, Util.canonicalIdentifier(ident));
+        values.put(COL_PROVIDER, provider);
+        values.putNull(COL_JSON);
+        values.put(COL_FETCHED, now);
+        values.put(COL_ACCESSED, now);
+        values.put(COL_RESULT, result);
+        cr.insert(Database.LOOKUP_URI, values);
+        trim(cr);
+    }
+
+    public static void remove(ContentResolver cr, String ident){
+        cr.delete(Database.LOOKUP_URI, COL_IDENT + "=?",
+                new String[]{Util.canonicalIdentifier(ident)});
+    }
+
+    public static void clear(ContentResolver cr){
+        cr.delete(Database.LOOKUP_URI, null, null);
+    }
+
+    // Drops expired entries, then the least recently used beyond the limit
+    public static void trim(ContentResolver cr){
+        long now = System.currentTimeMillis();
+        cr.delete(Database.LOOKUP_URI, "(" + COL_RESULT + "=" + RESULT_FOUND
+                + " AND " + COL_FETCHED + "<" + (now - getTimeToLive()) + ") OR ("
+                + COL_RESULT + "<>" + RESULT_FOUND
+                + " AND " + COL_FETCHED + "<" + (now - getNegativeTimeToLive()) + ")",
+                null);
+        cr.delete(Database.LOOKUP_URI, _ID + " NOT IN (SELECT " + _ID
+                + " FROM " + TBL_NAME + " ORDER BY " + COL_ACCESSED
+                + " DESC LIMIT " + getMaxEntries() + ")", null);
+    }
+}
@@ -0,0 +1,119 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The stored form of a saved item's JSON.
+ *
+ * A header (a zero byte, the format version, and the length of the text)
+ * followed by the deflated UTF-8 text. Rows written before this format
+ * hold the plain text, which never starts with a zero byte, and are read
+ * as they are.
+ */
+public class Payload {
+    private static final byte MAGIC = 0;
+    public static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 6;
+
+    // No saved item comes anywhere near this, a bigger length is corrupt
+    private static final int MAX_LENGTH = 1024 * 1024;
+
+    private static final String CHARSET = "UTF-8";
+
+    public static byte[] encode(String json){
+        byte[] raw = toBytes(json);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(raw);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + HEADER_SIZE);
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(raw.length >>> 24);
+        out.write(raw.length >>> 16);
+        out.write(raw.length >>> 8);
+        out.write(raw.length);
+        byte[] buf = new byte[1024];
+        try {
+            while(!deflater.finished()){
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    // The JSON text, or null if the payload can't be read
+    public static String decode(byte[] stored){
+        if(stored == null)
+            return null;
+        if(!isEncoded(stored))
+            return fromBytes(stored, stored.length);
+        if(stored[1] != VERSION)
+            return null;
+
+        int length = ((stored[2] & 0xff) << 24) | ((stored[3] & 0xff) << 16)
+                   | ((stored[4] & 0xff) << 8) | (stored[5] & 0xff);
+        if(length < 0 || length > MAX_LENGTH)
+            return null;
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+        inflater.setInput(stored, HEADER_SIZE, stored.length - HEADER_SIZE);
+        try {
+            int n = 0;
+            while(n < length && !inflater.finished()){
+                int read = inflater.inflate(raw, n, length - n);
+                if(read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    return null; // Truncated
+                n += read;
+            }
+            return fromBytes(raw, n);
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public static boolean isEncoded(byte[] stored){
+        return stored.length >= HEADER_SIZE && stored[0] == MAGIC;
+    }
+
+    private static byte[] toBytes(String s){
+        try {
+            return s.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // Every platform has UTF-8
+        }
+    }
+
+    private static String fromBytes(byte[] b, int length){
+        try {
+            return new String(b, 0, length, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.data;
+
+import java.util.ArrayList;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+/**
+ * A batch of saved items on its way to Zotero. Batches are written to the
+ * outbox before anything is sent, and only removed once the server has
+ * confirmed them, so an upload can be picked up again after a restart.
+ */
+public class UploadBatch implements BaseColumns {
+    public static final String TBL_NAME = "outbox";
+
+    public static final String COL_ACCT = "acct";
+    public static final String COL_DEST = "dest";
+    public static final String COL_ROWS = "rows";
+    public static final String COL_TOKEN = "token";
+    public static final String COL_STATUS = "status";
+    public static final String COL_CREATED = "created";
+    public static final String COL_COLLECTION = "collection";
+
+    public static final int STATUS_PENDING = 0; // Not sent yet
+    public static final int STATUS_SENDING = 1; // Sent, no answer yet
+    public static final int STATUS_FAILED = 2;  // Gave up for now
+
+    public static final int NO_ID = -1;
+
+    private long mId;
+    private int mAcctId;
+    private int mDest;
+    private int[] mRows;
+    private String mToken;
+    private int mStatus;
+    private long mCreated;
+    private String mCollection;
+
+    public UploadBatch(long id, int acct, int dest, String collection, int[] rows,
+                       String token, int status, long created){
+        mId = id;
+        mAcctId = acct;
+        mDest = dest;
+        mCollection = collection;
+        mRows = rows;
+        mToken = token;
+        mStatus = status;
+        mCreated = created;
+    }
+
+    public UploadBatch(int acct, int dest, String collection, int[] rows, String token){
+        this(NO_ID, acct, dest, collection, rows, token, STATUS_PENDING,
+             System.currentTimeMillis());
+    }
+
+    public static UploadBatch fromCursor(Cursor c){
+        return new UploadBatch(
+                c.getLong(c.getColumnIndex(_ID)),
+                c.getInt(c.getColumnIndex(COL_ACCT)),
+                c.getInt(c.getColumnIndex(COL_DEST)),
+                c.getString(c.getColumnIndex(COL_COLLECTION)),
+                parseRows(c.getString(c.getColumnIndex(COL_ROWS))),
+                c.getString(c.getColumnIndex(COL_TOKEN)),
+                c.getInt(c.getColumnIndex(COL_STATUS)),
+                c.getLong(c.getColumnIndex(COL_CREATED)));
+    }
+
+    /* Data access */
+    public long getId(){
+        return mId;
+    }
+
+    public int getAccountId(){
+        return mAcctId;
+    }
+
+    // User or group id the items are going to
+    public int getDestination(){
+        return mDest;
+    }
+
+    // Key of the collection the items are filed in, or null
+    public String getCollection(){
+        return mCollection;
+    }
+
+    // bibinfo row ids of the items in this batch
+    public int[] getRows(){
+        return mRows;
+    }
+
+    public String getWriteToken(){
+        return mToken;
+    }
+
+    public int getStatus(){
+        return mStatus;
+    }
+
+    public long getCreated(){
+        return mCreated;
+    }
+
+    // Whether the batch files its items where dest and collection say
+    public boolean goesTo(int dest, String collection){
+        if(mDest != dest)
+            return false;
+        return (mCollection == null) ? collection == null : mCollection.equals(collection);
+    }
+
+    /* Database */
+    public void writeToDB(ContentResolver cr){
+        ContentValues values = new ContentValues();
+        values.put(COL_ACCT, mAcctId);
+        values.put(COL_DEST, mDest);
+        values.put(COL_ROWS, joinRows(mRows));
+        values.put(COL_TOKEN, mToken);
+        values.put(COL_STATUS, mStatus);
+        values.put(COL_CREATED, mCreated);
+        values.put(COL_COLLECTION, mCollection);
+        if(mId == NO_ID){
+            Uri row = cr.insert(Database.OUTBOX_URI, values);
+            mId = Long.parseLong(row.getLastPathSegment());
+        }else{
+            cr.update(Database.OUTBOX_URI, values, _ID + "=" + mId, null);
+        }
+    }
+
+    public static void setStatus(ContentResolver cr, long id, int status){
+        ContentValues values = new ContentValues();
+        values.put(COL_STATUS, status);
+        cr.update(Database.OUTBOX_URI, values, _ID + "=" + id, null);
+    }
+
+    // Narrows a batch down to rows under a new write token, and leaves it
+    // failed until it is sent again. The old token can't be reused once the
+    // server has committed anything under it.
+    public static ContentProviderOperation reissueOp(long id, int[] rows, String token){
+        return ContentProviderOperation.newUpdate(Database.OUTBOX_URI)
+                .withSelection(_ID + "=" + id, null)
+                .withValue(COL_ROWS, joinRows(rows))
+                .withValue(COL_TOKEN, token)
+                .withValue(COL_STATUS, STATUS_FAILED)
+                .build();
+    }
+
+    // Takes rows out of a batch that hasn't been sent, keeping its token
+    public static ContentProviderOperation narrowOp(long id, int[] rows){
+        return ContentProviderOperation.newUpdate(Database.OUTBOX_URI)
+                .withSelection(_ID + "=" + id, null)
+                .withValue(COL_ROWS, joinRows(rows))
+                .build();
+    }
+
+    public static void delete(ContentResolver cr, long id){
+        cr.delete(Database.OUTBOX_URI, _ID + "=" + id, null);
+    }
+
+    public static ContentProviderOperation deleteOp(long id){
+        return ContentProviderOperation.newDelete(Database.OUTBOX_URI)
+                .withSelection(_ID + "=" + id, null)
+                .build();
+    }
+
+    // Every batch of this account's that hasn't been confirmed, oldest first
+    public static ArrayList<UploadBatch> loadUnfinished(ContentResolver cr, int acct){
+        Cursor c = cr.query(Database.OUTBOX_URI, null, COL_ACCT + "=?",
+                new String[]{String.valueOf(acct)}, _ID + " ASC");
+        ArrayList<UploadBatch> batches = new ArrayList<UploadBatch>(c.getCount());
+        try {
+            while(c.moveToNext()){
+                batches.add(fromCursor(c));
+            }
+        } finally {
+            c.close();
+        }
+        return batches;
+    }
+
+    public static String joinRows(int[] rows){
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i<rows.length; i++){
+            if(i > 0)
+                sb.append(',');
+            sb.append(rows[i]);
+        }
+        return sb.toString();
+    }
+
+    public static int[] parseRows(String rows){
+        if(TextUtils.isEmpty(rows))
+            return new int[0];
+        String[] parts = rows.split(",");
+        int[] ids = new int[parts.length];
+        for(int i=0; i<parts.length; i++){
+            ids[i] = Integer.parseInt(parts[i]);
+        }
+        return ids;
+    }
+}
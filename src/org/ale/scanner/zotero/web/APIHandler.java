@@ -17,12 +17,22 @@
 
 package org.ale.scanner.zotero.web;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.ale.scanner.zotero.MainActivity;
+import org.ale.scanner.zotero.PendingListAdapter;
+import org.ale.scanner.zotero.data.LookupCache;
 import org.ale.scanner.zotero.web.APIRequest.APIResponse;
 import org.apache.http.StatusLine;
 
+import android.content.ContentResolver;
+import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
 
@@ -37,6 +47,8 @@ public abstract class APIHandler extends Handler {
     public static final int SUCCESS = 4;
     public static final int FINISH = 5;
 
+    private static final int READ_BUFFER_SIZE = 2048; // chars
+
     protected ArrayList<Integer> mResponseTypes = new ArrayList<Integer>();
     protected ArrayList<APIResponse> mResponses = new ArrayList<APIResponse>();
     protected ArrayList<Runnable> mUIThreadEvents = new ArrayList<Runnable>();
@@ -44,13 +56,78 @@ public abstract class APIHandler extends Handler {
     protected static MainActivity MAIN = null;
     protected static ArrayList<APIHandler> HANDLERS = new ArrayList<APIHandler>();
 
+    // Outlives the activity, for work that finishes after it's gone
+    private static volatile Context sAppContext = null;
+
+    // Lookup cache writes, one at a time
+    private static final ExecutorService CACHE_WRITER = Executors.newSingleThreadExecutor();
+
     protected abstract void onStart(APIRequest req);
     protected abstract void onProgress(APIRequest req, int percent);
     protected abstract void onStatusLine(APIRequest req, StatusLine reason);
     protected abstract void onException(APIRequest req, Exception exc);
-    protected abstract void onSuccess(APIRequest req, String res);
+    protected abstract void onSuccess(APIRequest req, Object res);
+
+    /**
+     * Decodes a successful response body. This is called on the request's
+     * worker thread, before any activity is involved, and whatever it returns
+     * is passed to onSuccess.
+     *
+     * The default reads the body into a String. Handlers that can parse the
+     * stream directly, or can do their post-processing here instead of in a
+     * new thread, should override it.
+     */
+    protected Object parseResponse(APIRequest req, InputStream in, String charset)
+            throws Exception {
+        return readString(in, charset);
+    }
+
+    public static String readString(InputStream in, String charset)
+            throws IOException {
+        Reader reader = new InputStreamReader(in, charset);
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[READ_BUFFER_SIZE];
+        int read;
+        while((read = reader.read(buf)) != -1){
+            sb.append(buf, 0, read);
+        }
+        return sb.toString();
+    }
+
+    // Stores a lookup result in the LookupCache, off the UI thread
+    protected static void cacheLookup(final String ident, final String provider,
+                                      Object result){
+        final String json;
+        final int cached;
+        if(result instanceof Integer){
+            // Only remember failures that asking again won't fix
+            if(PendingListAdapter.STATUS_NOT_FOUND.equals(result)){
+                cached = LookupCache.RESULT_NOT_FOUND;
+            }else if(PendingListAdapter.STATUS_BAD_REQUEST.equals(result)){
+                cached = LookupCache.RESULT_INVALID;
+            }else{
+                return;
+            }
+            json = null;
+        }else{
+            cached = LookupCache.RESULT_FOUND;
+            json = result.toString();
+        }
+        if(sAppContext == null)
+            return;
+        final ContentResolver cr = sAppContext.getContentResolver();
+        CACHE_WRITER.execute(new Runnable(){
+            public void run(){
+                if(cached == LookupCache.RESULT_FOUND)
+                    LookupCache.put(cr, ident, provider, json);
+                else
+                    LookupCache.putFailure(cr, ident, provider, cached);
+            }
+        });
+    }
 
     public static void globalBindActivity(MainActivity activity) {
+        sAppContext = activity.getApplicationContext();
         for(APIHandler handler : HANDLERS){
             handler.bindActivity(activity);
         }
@@ -95,6 +172,10 @@ public abstract class APIHandler extends Handler {
     public void handleMessage(int type, APIResponse resp){
         APIRequest req = resp.getRequest();
 
+        // May have been cancelled after this message was sent or queued
+        if(req.isCancelled())
+            return;
+
         switch(type) {
         case APIHandler.START:
             onStart(req);
@@ -109,10 +190,10 @@ public abstract class APIHandler extends Handler {
             onException(req, (Exception)resp.getData());
             break;
         case APIHandler.SUCCESS:
-            onSuccess(req, (String) resp.getData());
+            onSuccess(req, resp.getData());
             break;
         case APIHandler.FINISH:
-            RequestQueue.getInstance().taskComplete(req);
+            // RequestQueue frees the slot itself once the request returns
             break;
         }
     }
@@ -17,11 +17,13 @@
 
 package org.ale.scanner.zotero.web;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.util.concurrent.TimeoutException;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
@@ -30,9 +32,11 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 
 import android.os.Bundle;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class APIRequest implements Runnable {
@@ -43,7 +47,8 @@ public class APIRequest implements Runnable {
     public static final int PUT = 2;
     public static final int DELETE = 3;
 
-    private static final int BUFFER_SIZE = 512;
+    // Used when the response doesn't declare a charset
+    public static final String DEFAULT_CHARSET = "UTF-8";
 
     private HttpClient mHttpsClient;
 
@@ -53,11 +58,157 @@ public class APIRequest implements Runnable {
 
     private Bundle mExtra = null;
 
+    private int mLane = RequestQueue.LANE_LOOKUP;
+
+    private Object mTag = null;
+
+    // Time allowed (ms) from being queued to finishing, 0 for no limit
+    private long mTimeout = 0;
+    private long mDeadline = 0;
+
+    private volatile boolean mCancelled = false;
+    private volatile boolean mTimedOut = false;
+
+    // Null means a failure is reported as soon as it happens
+    private RetryPolicy mRetryPolicy = null;
+    private int mAttempts = 0;
+    private boolean mStarted = false;
+
+    private volatile long mStartTime = 0;
+    private long mElapsed = -1;
+
+    // Response times are recorded under this name, see LatencyTracker
+    private String mLatencyKey = null;
+    private boolean mLatencyRecorded = false;
+
+    // Of the last response, for handlers that need more than the body
+    private int mStatusCode = -1;
+    private Header[] mResponseHeaders = null;
+
     public APIRequest(APIHandler handler, HttpClient client){
         mHandler = handler;
         mHttpsClient = client;
     }
 
+    // The RequestQueue lane this request will wait in.
+    public void setLane(int lane){
+        mLane = lane;
+    }
+
+    public int getLane(){
+        return mLane;
+    }
+
+    // Requests sharing a tag can be cancelled together,
+    // see RequestQueue.cancelByTag
+    public void setTag(Object tag){
+        mTag = tag;
+    }
+
+    public Object getTag(){
+        return mTag;
+    }
+
+    public void setTimeout(long millis){
+        mTimeout = millis;
+    }
+
+    public long getTimeout(){
+        return mTimeout;
+    }
+
+    // Called by the RequestQueue. The clock runs from the first time the
+    // request is queued.
+    void startClock(){
+        if(mTimeout > 0 && mDeadline == 0)
+            mDeadline = SystemClock.elapsedRealtime() + mTimeout;
+    }
+
+    long getDeadline(){
+        return mDeadline;
+    }
+
+    public boolean isCancelled(){
+        return mCancelled;
+    }
+
+    public boolean isTimedOut(){
+        return mTimedOut;
+    }
+
+    /**
+     * Stops this request wherever it is. A queued request is dropped, a
+     * running one has its connection aborted and its queue slot freed.
+     * Either way the handler hears nothing more about it.
+     */
+    public void cancel(){
+        RequestQueue.getInstance().cancel(this);
+    }
+
+    // Called by the RequestQueue once the request's slot has been dealt with
+    void abort(){
+        mCancelled = true;
+        // A hedge that lost still took at least this long
+        long started = mStartTime;
+        if(started > 0)
+            recordLatency(SystemClock.elapsedRealtime() - started);
+        mRequest.abort();
+    }
+
+    // Called by the RequestQueue when the deadline passes. Unlike cancel the
+    // handler is told, through onException.
+    void expire(){
+        mTimedOut = true;
+        mRequest.abort();
+    }
+
+    public void setRetryPolicy(RetryPolicy policy){
+        mRetryPolicy = policy;
+    }
+
+    public RetryPolicy getRetryPolicy(){
+        return mRetryPolicy;
+    }
+
+    public void setLatencyKey(String key){
+        mLatencyKey = key;
+    }
+
+    // One sample per request, however it ends. Timeouts and cancellations
+    // count too, or the tracker would only ever see the fast responses.
+    private synchronized void recordLatency(long millis){
+        if(mLatencyKey == null || mLatencyRecorded)
+            return;
+        mLatencyRecorded = true;
+        LatencyTracker.getInstance().record(mLatencyKey, millis);
+    }
+
+    // Time (ms) from starting to getting a response, or -1 if it hasn't
+    public long getElapsed(){
+        return mElapsed;
+    }
+
+    // Status code of the response, or -1 if there hasn't been one
+    public int getStatusCode(){
+        return mStatusCode;
+    }
+
+    // First value of the named response header, or null
+    public String getResponseHeader(String name){
+        if(mResponseHeaders == null)
+            return null;
+        for(Header h : mResponseHeaders){
+            if(h.getName().equalsIgnoreCase(name))
+                return h.getValue();
+        }
+        return null;
+    }
+
+    // Number of times this request has been sent
+    public int getAttempts(){
+        return mAttempts;
+    }
+
     // The Bundle extra is used to identify this request and provide 
     // its handler w/ the information needed to process the result.
     public void setExtra(Bundle extra){
@@ -83,10 +234,26 @@ public class APIRequest implements Runnable {
         mRequest.setURI(uri);
     }
 
+    public URI getURI() {
+        return mRequest.getURI();
+    }
+
     public void addHeader(String name, String value){
         mRequest.addHeader(name, value);
     }
 
+    // For bodies that are written as they're sent, see ItemsEntity
+    public void setEntity(HttpEntity entity) {
+        ((HttpPost)mRequest).setEntity(entity);
+    }
+
+    // The request body, or null if there isn't one
+    public HttpEntity getEntity() {
+        if(mRequest instanceof HttpPost)
+            return ((HttpPost)mRequest).getEntity();
+        return null;
+    }
+
     public void setContent(String content, String contentType) {
         mRequest.setHeader("Content-Type", contentType);
         //mRequest.setHeader("Content-Length", String.valueOf(content.length()));
@@ -97,44 +264,119 @@ public class APIRequest implements Runnable {
         }
     }
 
+    private void send(int what, Object data){
+        if(!mCancelled)
+            mHandler.sendMessage(Message.obtain(mHandler, what, new APIResponse(this, data)));
+    }
+
+    // Puts this request back on the queue after delay ms. Returns false if
+    // that would take it past its deadline.
+    private boolean retryLater(long delay){
+        if(mDeadline > 0 && SystemClock.elapsedRealtime() + delay >= mDeadline)
+            return false;
+        RequestQueue.getInstance().enqueueDelayed(this, delay);
+        return true;
+    }
+
     public void run() {
-        mHandler.sendMessage(
-                Message.obtain(mHandler, APIHandler.START, new APIResponse(this, null)));
+        if(mCancelled)
+            return;
+        // Handlers see one START and one FINISH however many attempts it takes
+        if(!mStarted){
+            mStarted = true;
+            mStartTime = SystemClock.elapsedRealtime();
+            send(APIHandler.START, null);
+        }
+        String host = mRequest.getURI().getHost();
+        boolean retrying = false;
         HttpResponse response = null;
         try {
-            response = mHttpsClient.execute(mRequest);
+            if(mDeadline > 0 && SystemClock.elapsedRealtime() >= mDeadline){
+                // Spent its whole deadline waiting in the queue
+                mTimedOut = true;
+                throw new TimeoutException();
+            }
+
+            // Hold off while the server has asked us to
+            long backoff = RetryPolicy.getBackoff(host);
+            if(backoff > 0 && retryLater(backoff)){
+                retrying = true;
+                return;
+            }
+
+            mAttempts++;
+            try {
+                response = mHttpsClient.execute(mRequest);
+            } catch (IOException e) {
+                if(!mCancelled && !mTimedOut && mRetryPolicy != null
+                        && mRetryPolicy.shouldRetry(mAttempts, e)
+                        && retryLater(mRetryPolicy.getDelay(mAttempts))){
+                    retrying = true;
+                    return;
+                }
+                throw e;
+            }
 
+            RetryPolicy.noteResponse(host, response);
             StatusLine status = response.getStatusLine();
-            mHandler.sendMessage(Message.obtain(mHandler, 
-                        APIHandler.STATUSLINE, new APIResponse(this, status)));
+            HttpEntity entity = response.getEntity();
+
+            if(mRetryPolicy != null
+                    && mRetryPolicy.shouldRetry(mAttempts, status.getStatusCode())){
+                long delay = Math.max(mRetryPolicy.getDelay(mAttempts),
+                                      RetryPolicy.getBackoff(host));
+                if(retryLater(delay)){
+                    if(entity != null)
+                        entity.consumeContent();
+                    retrying = true;
+                    return;
+                }
+            }
+
+            mElapsed = SystemClock.elapsedRealtime() - mStartTime;
+            recordLatency(mElapsed);
+            mStatusCode = status.getStatusCode();
+            mResponseHeaders = response.getAllHeaders();
+            send(APIHandler.STATUSLINE, status);
 
             // Check the status code if it's 400 or higher then we don't need to
             // finish reading the response, the APIHandler should know what to do.
             if(status.getStatusCode() <= 399){
-                HttpEntity entity = response.getEntity();
-                InputStream inputStream = entity.getContent();
-
-                ByteArrayOutputStream content = new ByteArrayOutputStream();
-
-                // Read response into a buffered stream
-                int readBytes = 0;
-                byte[] sBuffer = new byte[BUFFER_SIZE];
-                while ((readBytes = inputStream.read(sBuffer)) != -1) {
-                   content.write(sBuffer, 0, readBytes);
+                // Let the handler decode the body straight off the wire, on
+                // this thread, and pass whatever it makes of it to onSuccess.
+                Object result = null;
+                if(entity != null){
+                    String charset = EntityUtils.getContentCharSet(entity);
+                    if(charset == null)
+                        charset = DEFAULT_CHARSET;
+                    InputStream content = entity.getContent();
+                    try {
+                        result = mHandler.parseResponse(this, content, charset);
+                    } finally {
+                        content.close();
+                    }
                 }
-
-                // Return result from buffered stream
-                String dataAsString = new String(content.toByteArray());
-                mHandler.sendMessage(Message.obtain(mHandler, 
-                        APIHandler.SUCCESS, new APIResponse(this, dataAsString)));
+                send(APIHandler.SUCCESS, result);
+            }else if(entity != null){
+                // Drain the error body so the connection can be reused
+                entity.consumeContent();
             }
         } catch (Exception e) {
+            // Don't return a half-read connection to the pool
+            mRequest.abort();
+            if(mTimedOut && !(e instanceof TimeoutException)){
+                // The abort surfaces as some IOException, report it as what it is
+                e = new TimeoutException("Deadline of "+mTimeout+"ms exceeded");
+            }
+            if(mTimedOut){
+                // All we know is it would have taken longer than this
+                recordLatency(mTimeout);
+            }
             // TODO: list of all exceptions that could occur here
-            mHandler.sendMessage(Message.obtain(mHandler,
-                        APIHandler.EXCEPTION, new APIResponse(this, e)));
+            send(APIHandler.EXCEPTION, e);
         } finally {
-            mHandler.sendMessage(Message.obtain(mHandler, 
-                        APIHandler.FINISH, new APIResponse(this, null)));
+            if(!retrying)
+                send(APIHandler.FINISH, null);
         }
     }
 
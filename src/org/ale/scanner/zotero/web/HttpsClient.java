@@ -17,7 +17,18 @@
 
 package org.ale.scanner.zotero.web;
 
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -25,9 +36,13 @@ import org.apache.http.conn.scheme.SocketFactory;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 
 import android.os.Build;
 
@@ -35,19 +50,47 @@ public class HttpsClient extends DefaultHttpClient {
 
     public static String USER_AGENT = "ScannerForZotero/1.0.1 Android/"+Build.VERSION.RELEASE;
 
+    // Hosts we send bursts of requests to. These get more sockets and
+    // their connections are kept alive longer between bursts.
+    public static final String ZOTERO_HOST = "api.zotero.org";
+    public static final String GOOGLE_HOST = "www.googleapis.com";
+    private static final String[] WARM_HOSTS = { ZOTERO_HOST, GOOGLE_HOST };
+
+    // Pool sizes
+    private static final int MAX_TOTAL_CONNECTIONS = 12;
+    private static final int DEFAULT_MAX_PER_HOST = 2;
+    private static final int WARM_MAX_PER_HOST = 4;
+
+    // Timeouts, in milliseconds
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+    private static final long POOL_TIMEOUT = 30000; // Waiting for a free socket
+
+    // How long an idle connection is kept if the server doesn't say
+    private static final long DEFAULT_KEEP_ALIVE = 30000;
+    private static final long WARM_KEEP_ALIVE = 120000;
+
+    // The eviction thread closes expired and idle connections this often
+    private static final long EVICTION_INTERVAL = 15000;
+    private static final long MAX_IDLE = WARM_KEEP_ALIVE;
+
     private static HttpsClient mInstance;
 
-    public static HttpsClient getInstance() {
+    private static ConnPerRouteBean mConnPerRoute;
+
+    public static synchronized HttpsClient getInstance() {
         if(mInstance == null){
             HttpParams mHttpParams = setupHttpParams();
             ThreadSafeClientConnManager mConnMan = setupSSLConnMan(mHttpParams);
             mInstance = new HttpsClient(mConnMan, mHttpParams);
+            new IdleConnectionEvictor(mConnMan).start();
         }
         return mInstance;
     }
 
     public HttpsClient(ThreadSafeClientConnManager connMan, HttpParams httpParams) {
         super(connMan, httpParams);
+        setKeepAliveStrategy(new KeepAliveStrategy());
     }
 
     public static HttpParams setupHttpParams(){
@@ -59,7 +102,19 @@ public class HttpsClient extends DefaultHttpClient {
         HttpProtocolParams.setUserAgent(params, USER_AGENT);
 
         // Connection Parameters
-        // HttpConnectionParams.setConnectionTimeout(params, 5000);
+        HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+        // Check pooled connections before reuse, servers drop them silently
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+        // Pool Parameters
+        mConnPerRoute = new ConnPerRouteBean(DEFAULT_MAX_PER_HOST);
+        for(String host : WARM_HOSTS){
+            mConnPerRoute.setMaxForRoute(routeFor(host), WARM_MAX_PER_HOST);
+        }
+        ConnManagerParams.setMaxConnectionsPerRoute(params, mConnPerRoute);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setTimeout(params, POOL_TIMEOUT);
         return params;
     }
 
@@ -77,4 +132,68 @@ public class HttpsClient extends DefaultHttpClient {
         return new ThreadSafeClientConnManager(params, registry);
     }
 
+    public static synchronized void setMaxConnectionsForHost(String host, int max){
+        // The connection manager reads this on every request, so it takes
+        // effect immediately.
+        getInstance();
+        mConnPerRoute.setMaxForRoute(routeFor(host), max);
+    }
+
+    private static HttpRoute routeFor(String host){
+        return new HttpRoute(new HttpHost(host, 443, "https"));
+    }
+
+    private static boolean isWarmHost(String host){
+        for(String warm : WARM_HOSTS){
+            if(warm.equalsIgnoreCase(host))
+                return true;
+        }
+        return false;
+    }
+
+    private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            HttpHost target = (HttpHost) context.getAttribute("http.target_host");
+            long keepAlive = (target != null && isWarmHost(target.getHostName())) ?
+                    WARM_KEEP_ALIVE : DEFAULT_KEEP_ALIVE;
+
+            // Never keep a connection longer than the server will
+            HeaderElementIterator it = new BasicHeaderElementIterator(
+                    response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while(it.hasNext()){
+                HeaderElement he = it.nextElement();
+                if("timeout".equalsIgnoreCase(he.getName()) && he.getValue() != null){
+                    try {
+                        long serverKeepAlive = Long.parseLong(he.getValue()) * 1000;
+                        keepAlive = Math.min(keepAlive, serverKeepAlive);
+                    } catch(NumberFormatException e) {
+                        // Ignore it
+                    }
+                }
+            }
+            return keepAlive;
+        }
+    }
+
+    private static class IdleConnectionEvictor extends Thread {
+        private final ClientConnectionManager mConnMan;
+
+        public IdleConnectionEvictor(ClientConnectionManager connMan){
+            super("IdleConnectionEvictor");
+            mConnMan = connMan;
+            setDaemon(true);
+        }
+
+        public void run(){
+            while(true){
+                try {
+                    Thread.sleep(EVICTION_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mConnMan.closeExpiredConnections();
+                mConnMan.closeIdleConnections(MAX_IDLE, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
 }
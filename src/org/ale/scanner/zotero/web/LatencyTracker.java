@@ -0,0 +1,104 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.web;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Keeps a window of recent response times per provider, and works out how
+ * long to wait on one before hedging with another.
+ */
+public class LatencyTracker {
+
+    private static final int WINDOW = 64; // Samples kept per provider
+    private static final int MIN_SAMPLES = 8;
+
+    public static final double DEFAULT_PERCENTILE = 0.9;
+
+    // Used until we have enough samples, and as bounds after that (ms)
+    private static final long DEFAULT_HEDGE_DELAY = 3000;
+    private static final long MIN_HEDGE_DELAY = 500;
+    private static final long MAX_HEDGE_DELAY = 15000;
+
+    private static LatencyTracker mInstance = null;
+
+    private final HashMap<String, Samples> mSamples;
+    private double mPercentile = DEFAULT_PERCENTILE;
+
+    public static synchronized LatencyTracker getInstance(){
+        if(mInstance == null)
+            mInstance = new LatencyTracker();
+        return mInstance;
+    }
+
+    private LatencyTracker(){
+        mSamples = new HashMap<String, Samples>();
+    }
+
+    public synchronized void record(String provider, long millis){
+        if(millis < 0)
+            return;
+        Samples samples = mSamples.get(provider);
+        if(samples == null){
+            samples = new Samples();
+            mSamples.put(provider, samples);
+        }
+        samples.mValues[samples.mNext] = millis;
+        samples.mNext = (samples.mNext + 1) % WINDOW;
+        if(samples.mCount < WINDOW)
+            samples.mCount++;
+    }
+
+    // The p-th percentile (0 < p <= 1) of recent latencies, or -1 if there
+    // aren't enough samples yet.
+    public synchronized long getPercentile(String provider, double p){
+        Samples samples = mSamples.get(provider);
+        if(samples == null || samples.mCount < MIN_SAMPLES)
+            return -1;
+        long[] sorted = new long[samples.mCount];
+        System.arraycopy(samples.mValues, 0, sorted, 0, samples.mCount);
+        Arrays.sort(sorted);
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+
+    public synchronized void setHedgePercentile(double p){
+        if(p <= 0 || p > 1)
+            throw new IllegalArgumentException("Percentile must be in (0, 1]");
+        mPercentile = p;
+    }
+
+    public synchronized double getHedgePercentile(){
+        return mPercentile;
+    }
+
+    // How long to give provider before racing it with another one
+    public synchronized long getHedgeDelay(String provider){
+        long delay = getPercentile(provider, mPercentile);
+        if(delay < 0)
+            return DEFAULT_HEDGE_DELAY;
+        return Math.max(MIN_HEDGE_DELAY, Math.min(delay, MAX_HEDGE_DELAY));
+    }
+
+    private static class Samples {
+        final long[] mValues = new long[WINDOW];
+        int mNext = 0;
+        int mCount = 0;
+    }
+}
@@ -0,0 +1,138 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.web;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.ale.scanner.zotero.Util;
+
+/**
+ * Makes sure only one lookup per work is in flight.
+ *
+ * Identifiers are keyed by Util.canonicalIdentifier, so the ISBN-10 and
+ * ISBN-13 of a book share a request. Everyone who joins while it's in
+ * flight is handed the result when it completes.
+ *
+ * A flight may be hedged with requests to other providers. The first
+ * success completes it, but it only fails once every request has failed.
+ */
+public class LookupCoalescer {
+
+    private static LookupCoalescer mInstance = null;
+
+    // Canonical key -> lookup in progress
+    private HashMap<String, Flight> mInFlight;
+
+    public static synchronized LookupCoalescer getInstance(){
+        if(mInstance == null)
+            mInstance = new LookupCoalescer();
+        return mInstance;
+    }
+
+    private LookupCoalescer(){
+        mInFlight = new HashMap<String, Flight>();
+    }
+
+    public static String keyFor(String ident){
+        return Util.canonicalIdentifier(ident);
+    }
+
+    // Returns true if the caller should make the request, false if one
+    // is already in flight and ident has been added to its waiters.
+    public synchronized boolean join(String ident){
+        String key = keyFor(ident);
+        Flight flight = mInFlight.get(key);
+        if(flight == null){
+            flight = new Flight();
+            flight.mWaiters.add(ident);
+            mInFlight.put(key, flight);
+            return true;
+        }
+        if(!flight.mWaiters.contains(ident))
+            flight.mWaiters.add(ident);
+        return false;
+    }
+
+    // Returns true if the caller should send another request for ident's
+    // flight, false if the flight has already ended or been hedged.
+    public synchronized boolean hedge(String ident){
+        Flight flight = mInFlight.get(keyFor(ident));
+        if(flight == null || flight.mHedged)
+            return false;
+        flight.mHedged = true;
+        flight.mRequests++;
+        return true;
+    }
+
+    public synchronized boolean isInFlight(String ident){
+        return mInFlight.containsKey(keyFor(ident));
+    }
+
+    // Ends the flight ident belongs to and returns everyone waiting on it.
+    public synchronized ArrayList<String> complete(String ident){
+        Flight flight = mInFlight.remove(keyFor(ident));
+        if(flight == null)
+            return single(ident);
+        return flight.mWaiters;
+    }
+
+    // One of the flight's requests failed. Returns everyone waiting on it
+    // if that was the last one, otherwise nobody.
+    public synchronized ArrayList<String> fail(String ident){
+        String key = keyFor(ident);
+        Flight flight = mInFlight.get(key);
+        if(flight == null)
+            return single(ident);
+        flight.mRequests--;
+        if(flight.mRequests > 0)
+            return new ArrayList<String>();
+        mInFlight.remove(key);
+        return flight.mWaiters;
+    }
+
+    // Stops waiting for ident. Returns true if nobody is left waiting, in
+    // which case the requests (tagged with keyFor(ident)) should be cancelled.
+    public synchronized boolean leave(String ident){
+        String key = keyFor(ident);
+        Flight flight = mInFlight.get(key);
+        if(flight == null)
+            return false;
+        flight.mWaiters.remove(ident);
+        if(flight.mWaiters.isEmpty()){
+            mInFlight.remove(key);
+            return true;
+        }
+        return false;
+    }
+
+    private static ArrayList<String> single(String ident){
+        ArrayList<String> waiters = new ArrayList<String>();
+        waiters.add(ident);
+        return waiters;
+    }
+
+    private static class Flight {
+        // Identifiers (as scanned) waiting on the result
+        final ArrayList<String> mWaiters = new ArrayList<String>();
+        // Requests still out for it
+        int mRequests = 1;
+        // Only one hedge per flight
+        boolean mHedged = false;
+    }
+}
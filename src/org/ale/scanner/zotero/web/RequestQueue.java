@@ -18,42 +18,342 @@
 package org.ale.scanner.zotero.web;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Runs APIRequests on a shared pool of worker threads.
+ *
+ * Requests are queued in lanes. Each lane has its own concurrency limit, and
+ * when a worker frees up the lanes are polled in priority order, so a burst
+ * of uploads can never starve an interactive lookup.
+ */
 public class RequestQueue {
 
-    private static final int CAPACITY = 5;
-    
+    // Lanes in priority order, lowest value is started first.
+    public static final int LANE_LOOKUP = 0; // Interactive ISBN/ISSN lookups
+    public static final int LANE_SYNC = 1;   // Permission and group refreshes
+    public static final int LANE_UPLOAD = 2; // Item uploads
+    public static final int NUM_LANES = 3;
+
+    private static final int[] DEFAULT_LANE_CAPACITY = {4, 2, 2};
+    private static final int DEFAULT_MAX_WORKERS = 6;
+
+    // Idle workers are kept around this long before being reclaimed
+    private static final long WORKER_KEEP_ALIVE = 30; // seconds
+
     private static RequestQueue instance;
-    
-    private static ArrayList<APIRequest> active =  new ArrayList<APIRequest>();
 
-    private static LinkedList<APIRequest> queue = new LinkedList<APIRequest>();
+    private final ArrayList<LinkedList<Task>> mQueues;
+    private final ArrayList<Task> mRunning;
+    private final HashMap<APIRequest, ScheduledFuture<?>> mDelayed;
+    private final int[] mActive;
+    private final int[] mCapacity;
+    private int mMaxWorkers;
+    private int mTotalActive;
 
-    public static RequestQueue getInstance(){
+    // Wait time statistics, per lane
+    private final long[] mStarted;
+    private final long[] mTotalWait;
+    private final long[] mMaxWait;
+
+    private final ThreadPoolExecutor mWorkers;
+
+    // Fires deadlines and delayed retries
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    public static synchronized RequestQueue getInstance(){
         if(instance == null)
             instance = new RequestQueue();
         return instance;
     }
 
+    private RequestQueue(){
+        mQueues = new ArrayList<LinkedList<Task>>(NUM_LANES);
+        for(int i=0; i<NUM_LANES; i++){
+            mQueues.add(new LinkedList<Task>());
+        }
+        mRunning = new ArrayList<Task>();
+        mDelayed = new HashMap<APIRequest, ScheduledFuture<?>>();
+        mActive = new int[NUM_LANES];
+        mCapacity = DEFAULT_LANE_CAPACITY.clone();
+        mMaxWorkers = DEFAULT_MAX_WORKERS;
+
+        mStarted = new long[NUM_LANES];
+        mTotalWait = new long[NUM_LANES];
+        mMaxWait = new long[NUM_LANES];
+
+        // Concurrency is bounded by the lane capacities, so the pool itself
+        // only has to hand out (and recycle) threads.
+        mWorkers = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new WorkerFactory());
+        mTimer = new ScheduledThreadPoolExecutor(1, new WorkerFactory());
+    }
+
     public synchronized void enqueue(APIRequest task){
-        queue.add(task);
-        if(active.size() < CAPACITY){
-            startNext();
+        int lane = checkLane(task.getLane());
+        task.startClock();
+        mQueues.get(lane).add(new Task(task, lane));
+        startNext();
+    }
+
+    // Runs r on the queue's timer thread after delay ms. It should be quick.
+    public void schedule(Runnable r, long delay){
+        mTimer.schedule(r, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Queues the request after delay ms, used for retries
+    public synchronized void enqueueDelayed(final APIRequest req, long delay){
+        ScheduledFuture<?> pending = mTimer.schedule(new Runnable(){
+            public void run(){
+                synchronized(RequestQueue.this){
+                    // Unless it was cancelled while waiting
+                    if(mDelayed.remove(req) != null)
+                        enqueue(req);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        mDelayed.put(req, pending);
+    }
+
+    /**
+     * Cancels a waiting, queued or running request and frees its slot
+     * straight away. Returns false if the request had already finished.
+     */
+    public synchronized boolean cancel(APIRequest req){
+        boolean found = false;
+        ScheduledFuture<?> pending = mDelayed.remove(req);
+        if(pending != null){
+            pending.cancel(false);
+            found = true;
+        }
+        for(LinkedList<Task> queue : mQueues){
+            Iterator<Task> it = queue.iterator();
+            while(it.hasNext()){
+                if(it.next().mRequest == req){
+                    it.remove();
+                    found = true;
+                }
+            }
+        }
+        for(Task task : new ArrayList<Task>(mRunning)){
+            if(task.mRequest == req){
+                // The worker may take a moment to notice the abort, don't
+                // make the next request wait for it.
+                release(task);
+                found = true;
+            }
+        }
+        if(found)
+            req.abort();
+        return found;
+    }
+
+    // Cancels every queued or running request with this tag, returns how many
+    public synchronized int cancelByTag(Object tag){
+        ArrayList<APIRequest> matches = new ArrayList<APIRequest>();
+        for(APIRequest req : mDelayed.keySet()){
+            if(releaseTag(req, tag))
+                matches.add(req);
+        }
+        for(LinkedList<Task> queue : mQueues){
+            for(Task task : queue){
+                if(releaseTag(task.mRequest, tag))
+                    matches.add(task.mRequest);
+            }
+        }
+        for(Task task : mRunning){
+            if(releaseTag(task.mRequest, tag))
+                matches.add(task.mRequest);
+        }
+        for(APIRequest req : matches){
+            cancel(req);
         }
+        return matches.size();
+    }
+
+    // True if req should be cancelled along with everything tagged tag
+    private static boolean releaseTag(APIRequest req, Object tag){
+        Object reqTag = req.getTag();
+        if(reqTag instanceof SharedTag)
+            return ((SharedTag) reqTag).release(tag);
+        return tag.equals(reqTag);
     }
 
     private synchronized void startNext() {
-        if(!queue.isEmpty()){
-            APIRequest next = queue.poll();
-            active.add(next);
-            Thread task = new Thread(next);
-            task.start();
+        // Fill free slots, highest priority lane first
+        for(int lane=0; lane<NUM_LANES && mTotalActive < mMaxWorkers; lane++){
+            LinkedList<Task> queue = mQueues.get(lane);
+            while(!queue.isEmpty()
+                    && mActive[lane] < mCapacity[lane]
+                    && mTotalActive < mMaxWorkers){
+                Task next = queue.poll();
+                long waited = SystemClock.elapsedRealtime() - next.mEnqueued;
+                mStarted[lane]++;
+                mTotalWait[lane] += waited;
+                if(waited > mMaxWait[lane])
+                    mMaxWait[lane] = waited;
+
+                mActive[lane]++;
+                mTotalActive++;
+                mRunning.add(next);
+                scheduleDeadline(next);
+                mWorkers.execute(next);
+            }
         }
     }
 
-    public synchronized void taskComplete(APIRequest task){
-        active.remove(task);
+    private void scheduleDeadline(final Task task){
+        long deadline = task.mRequest.getDeadline();
+        if(deadline == 0)
+            return;
+        // Already-expired requests are failed by APIRequest.run itself
+        long delay = deadline - SystemClock.elapsedRealtime();
+        if(delay > 0){
+            task.mWatchdog = mTimer.schedule(new Runnable(){
+                public void run(){
+                    task.mRequest.expire();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void release(Task task){
+        // Cancelled tasks are released early, don't free their slot twice
+        if(task.mReleased)
+            return;
+        task.mReleased = true;
+        if(task.mWatchdog != null)
+            task.mWatchdog.cancel(false);
+        mRunning.remove(task);
+        mActive[task.mLane]--;
+        mTotalActive--;
+        startNext();
+    }
+
+    /* Tuning */
+    public synchronized void setLaneCapacity(int lane, int capacity){
+        if(capacity < 1)
+            throw new IllegalArgumentException("Lane capacity must be positive");
+        mCapacity[checkLane(lane)] = capacity;
         startNext();
     }
+
+    public synchronized int getLaneCapacity(int lane){
+        return mCapacity[checkLane(lane)];
+    }
+
+    public synchronized void setMaxWorkers(int workers){
+        if(workers < 1)
+            throw new IllegalArgumentException("Worker count must be positive");
+        mMaxWorkers = workers;
+        startNext();
+    }
+
+    public synchronized int getMaxWorkers(){
+        return mMaxWorkers;
+    }
+
+    /* Statistics */
+    public synchronized int getQueueDepth(int lane){
+        return mQueues.get(checkLane(lane)).size();
+    }
+
+    public synchronized int getActiveCount(int lane){
+        return mActive[checkLane(lane)];
+    }
+
+    public synchronized long getAverageWait(int lane){
+        // Mean time (ms) between enqueue and start for requests in this lane
+        lane = checkLane(lane);
+        if(mStarted[lane] == 0)
+            return 0;
+        return mTotalWait[lane] / mStarted[lane];
+    }
+
+    public synchronized long getMaxWait(int lane){
+        return mMaxWait[checkLane(lane)];
+    }
+
+    public synchronized void resetStats(){
+        for(int i=0; i<NUM_LANES; i++){
+            mStarted[i] = 0;
+            mTotalWait[i] = 0;
+            mMaxWait[i] = 0;
+        }
+    }
+
+    private static int checkLane(int lane){
+        if(lane < 0 || lane >= NUM_LANES)
+            throw new IllegalArgumentException("Unknown lane " + lane);
+        return lane;
+    }
+
+    /**
+     * Tag for a request made on behalf of several tags, e.g. a batch of
+     * lookups. cancelByTag only cancels it once all of them have been.
+     */
+    public static class SharedTag {
+        private final HashSet<Object> mTags;
+
+        public SharedTag(Object[] tags){
+            mTags = new HashSet<Object>(Arrays.asList(tags));
+        }
+
+        private synchronized boolean release(Object tag){
+            return mTags.remove(tag) && mTags.isEmpty();
+        }
+    }
+
+    private class Task implements Runnable {
+        private final APIRequest mRequest;
+        private final int mLane;
+        private final long mEnqueued;
+        private ScheduledFuture<?> mWatchdog;
+        private boolean mReleased = false;
+
+        public Task(APIRequest req, int lane){
+            mRequest = req;
+            mLane = lane;
+            mEnqueued = SystemClock.elapsedRealtime();
+        }
+
+        public void run(){
+            try {
+                mRequest.run();
+            } finally {
+                // Free the slot as soon as the request is done rather than
+                // waiting for the handler, which may be queueing messages
+                // while no activity is bound.
+                release(this);
+            }
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private int mCount = 0;
+
+        public synchronized Thread newThread(final Runnable r) {
+            mCount++;
+            return new Thread(new Runnable(){
+                public void run(){
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "RequestQueue #" + mCount);
+        }
+    }
 }
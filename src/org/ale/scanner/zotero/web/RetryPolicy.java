@@ -0,0 +1,154 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.web;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import android.os.SystemClock;
+
+/**
+ * Decides whether, and when, a failed APIRequest is tried again.
+ *
+ * Delays grow exponentially from a base with full jitter, so a burst of
+ * failures doesn't come back as a burst of retries. A server's Retry-After
+ * or Backoff header always wins over our own schedule, and is applied to
+ * every request to that host, not just the one that got it.
+ */
+public class RetryPolicy {
+
+    public static final String HDR_RETRY_AFTER = "Retry-After";
+    public static final String HDR_BACKOFF = "Backoff"; // Zotero
+
+    // Interactive lookups give up quickly, the user is waiting
+    public static final RetryPolicy LOOKUP =
+            new RetryPolicy(3, 1000, 8000, 408, 429, 500, 502, 503, 504);
+    // 409 is Zotero's "library locked", which clears by itself
+    public static final RetryPolicy SYNC =
+            new RetryPolicy(4, 2000, 30000, 408, 409, 429, 500, 502, 503, 504);
+    // Uploads carry a write token, so resending one is safe
+    public static final RetryPolicy UPLOAD =
+            new RetryPolicy(5, 2000, 60000, 408, 409, 429, 500, 502, 503, 504);
+
+    // Never wait longer than this for a server, whatever it asks for
+    private static final long MAX_SERVER_DELAY = 10 * 60 * 1000;
+
+    private static final Random RANDOM = new Random();
+
+    // Host -> elapsedRealtime before which we shouldn't contact it
+    private static final HashMap<String, Long> BACKOFF = new HashMap<String, Long>();
+
+    private final int mMaxAttempts;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final int[] mRetryStatus;
+
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, int... retryStatus){
+        mMaxAttempts = maxAttempts;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mRetryStatus = retryStatus;
+    }
+
+    public int getMaxAttempts(){
+        return mMaxAttempts;
+    }
+
+    // attempts is the number of tries made so far
+    public boolean shouldRetry(int attempts, int status){
+        if(attempts >= mMaxAttempts)
+            return false;
+        for(int s : mRetryStatus){
+            if(s == status)
+                return true;
+        }
+        return false;
+    }
+
+    // Network failures (resets, timeouts, DNS) are always worth another try
+    public boolean shouldRetry(int attempts, Exception e){
+        return attempts < mMaxAttempts && e instanceof IOException;
+    }
+
+    public long getDelay(int attempts){
+        // Full jitter: uniform in [0, min(max, base * 2^(attempts-1))]
+        int shift = Math.min(Math.max(attempts - 1, 0), 16);
+        long ceiling = Math.min(mMaxDelay, mBaseDelay << shift);
+        synchronized(RANDOM){
+            return (long) (RANDOM.nextDouble() * ceiling);
+        }
+    }
+
+    /* Server requested delays */
+
+    // Records any Retry-After or Backoff the server sent with this response
+    public static void noteResponse(String host, HttpResponse response){
+        long delay = Math.max(parseDelay(response.getFirstHeader(HDR_RETRY_AFTER)),
+                              parseDelay(response.getFirstHeader(HDR_BACKOFF)));
+        if(delay <= 0 || host == null)
+            return;
+        long until = SystemClock.elapsedRealtime() + Math.min(delay, MAX_SERVER_DELAY);
+        synchronized(BACKOFF){
+            Long current = BACKOFF.get(host);
+            if(current == null || current.longValue() < until)
+                BACKOFF.put(host, Long.valueOf(until));
+        }
+    }
+
+    // How long (ms) until we're allowed to contact host again
+    public static long getBackoff(String host){
+        if(host == null)
+            return 0;
+        synchronized(BACKOFF){
+            Long until = BACKOFF.get(host);
+            if(until == null)
+                return 0;
+            long remaining = until.longValue() - SystemClock.elapsedRealtime();
+            if(remaining <= 0){
+                BACKOFF.remove(host);
+                return 0;
+            }
+            return remaining;
+        }
+    }
+
+    private static long parseDelay(Header header){
+        // Either delta-seconds or an HTTP-date
+        if(header == null || header.getValue() == null)
+            return 0;
+        String value = header.getValue().trim();
+        try {
+            return Long.parseLong(value) * 1000;
+        } catch (NumberFormatException e) {
+            // Try a date
+        }
+        try {
+            Date date = DateUtils.parseDate(value);
+            return date.getTime() - System.currentTimeMillis();
+        } catch (DateParseException e) {
+            return 0;
+        }
+    }
+}
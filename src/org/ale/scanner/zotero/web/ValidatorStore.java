@@ -0,0 +1,92 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.web;
+
+import java.net.URI;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the ETag and Last-Modified-Version of responses, by request URI,
+ * so they can be fetched again conditionally.
+ *
+ * A validator should only be saved once whatever was made of its response
+ * is safely stored, and removed when that copy is thrown away. A 304 is
+ * then a promise that the stored copy is still current.
+ */
+public class ValidatorStore {
+
+    public static final String HDR_ETAG = "ETag";
+    public static final String HDR_VERSION = "Last-Modified-Version";
+    public static final String HDR_IF_NONE_MATCH = "If-None-Match";
+    public static final String HDR_IF_MODIFIED_SINCE_VERSION = "If-Modified-Since-Version";
+
+    private static final String PREFS_NAME = "validators";
+    private static final String KEY_ETAG = "etag:";
+    private static final String KEY_VERSION = "version:";
+
+    private static ValidatorStore mInstance = null;
+
+    private final SharedPreferences mPrefs;
+
+    public static synchronized ValidatorStore getInstance(Context context){
+        if(mInstance == null)
+            mInstance = new ValidatorStore(context.getApplicationContext());
+        return mInstance;
+    }
+
+    private ValidatorStore(Context context){
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    // Makes req conditional on whatever was saved for its URI
+    public void applyTo(APIRequest req){
+        String uri = req.getURI().toString();
+        String etag = mPrefs.getString(KEY_ETAG + uri, null);
+        if(etag != null)
+            req.addHeader(HDR_IF_NONE_MATCH, etag);
+        String version = mPrefs.getString(KEY_VERSION + uri, null);
+        if(version != null)
+            req.addHeader(HDR_IF_MODIFIED_SINCE_VERSION, version);
+    }
+
+    // Saves the validators of req's response, if it had any
+    public void save(APIRequest req){
+        String uri = req.getURI().toString();
+        String etag = req.getResponseHeader(HDR_ETAG);
+        String version = req.getResponseHeader(HDR_VERSION);
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if(etag != null)
+            editor.putString(KEY_ETAG + uri, etag);
+        else
+            editor.remove(KEY_ETAG + uri);
+        if(version != null)
+            editor.putString(KEY_VERSION + uri, version);
+        else
+            editor.remove(KEY_VERSION + uri);
+        editor.commit();
+    }
+
+    public void remove(URI uri){
+        mPrefs.edit()
+            .remove(KEY_ETAG + uri.toString())
+            .remove(KEY_VERSION + uri.toString())
+            .commit();
+    }
+}
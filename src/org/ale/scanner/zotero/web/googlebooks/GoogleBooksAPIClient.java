@@ -18,15 +18,20 @@
 package org.ale.scanner.zotero.web.googlebooks;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import org.ale.scanner.zotero.Util;
 import org.ale.scanner.zotero.data.CreatorType;
 import org.ale.scanner.zotero.data.ItemField;
 import org.ale.scanner.zotero.data.ItemType;
+import org.ale.scanner.zotero.data.LookupCache;
 import org.ale.scanner.zotero.web.APIHandler;
 import org.ale.scanner.zotero.web.APIRequest;
 import org.ale.scanner.zotero.web.HttpsClient;
+import org.ale.scanner.zotero.web.LookupCoalescer;
 import org.ale.scanner.zotero.web.RequestQueue;
+import org.ale.scanner.zotero.web.RetryPolicy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -37,15 +42,27 @@ import android.text.TextUtils;
 
 public class GoogleBooksAPIClient {
 
-    public static final String BOOK_SEARCH_ISBN = "https://www.googleapis.com/books/v1/volumes?prettyPrint=flase&q=isbn:";
+    // Up to MAX_BATCH "isbn:<n>" terms joined with "+OR+"
+    public static final String BOOK_SEARCH_ISBNS = "https://www.googleapis.com/books/v1/volumes?prettyPrint=false&maxResults=40&q=";
 
-    public static final String EXTRA_ISBN = "ISBN";
+    public static final String EXTRA_ISBNS = "ISBNS";
+
+    // Lookups made within this long (ms) of each other share a request
+    public static final long BATCH_WINDOW = 250;
+    public static final int MAX_BATCH = 20;
+
+    // Give up on a lookup after this long (ms), including time spent queued
+    public static final long LOOKUP_TIMEOUT = 60000;
 
     private DefaultHttpClient mHttpsClient;
 
     private RequestQueue mRequestQueue;
 
     private APIHandler mHandler;
+
+    // ISBNs waiting to go out with the next batch
+    private static final ArrayList<String> sBatch = new ArrayList<String>();
+    private static boolean sFlushScheduled = false;
     
     public GoogleBooksAPIClient() {
         mHandler = GoogleBooksHandler.getInstance();
@@ -57,23 +74,144 @@ public class GoogleBooksAPIClient {
         return new APIRequest(mHandler, mHttpsClient);
     }
 
-    public void isbnLookup(String isbn) {
+    // Returns false if it joined a lookup that was already in flight
+    public boolean isbnLookup(String isbn) {
+        // Share a request already in flight for the same work
+        if(!LookupCoalescer.getInstance().join(isbn))
+            return false;
+        sendIsbnLookup(isbn);
+        return true;
+    }
+
+    // Races another provider's lookup that is taking too long
+    public void hedgeIsbnLookup(String isbn) {
+        if(!LookupCoalescer.getInstance().hedge(isbn))
+            return;
+        sendIsbnLookup(isbn);
+    }
+
+    private void sendIsbnLookup(String isbn) {
+        // Hold on to it briefly in case more scans follow
+        synchronized(sBatch){
+            if(!sBatch.contains(isbn))
+                sBatch.add(isbn);
+            if(sBatch.size() >= MAX_BATCH){
+                flushBatch();
+            }else if(!sFlushScheduled){
+                sFlushScheduled = true;
+                mRequestQueue.schedule(new Runnable(){
+                    public void run(){
+                        flushBatch();
+                    }
+                }, BATCH_WINDOW);
+            }
+        }
+    }
+
+    private void flushBatch() {
+        String[] isbns;
+        synchronized(sBatch){
+            sFlushScheduled = false;
+            if(sBatch.isEmpty())
+                return;
+            isbns = sBatch.toArray(new String[sBatch.size()]);
+            sBatch.clear();
+        }
+        sendBatch(isbns);
+    }
+
+    // Asks again for an ISBN a batch came back without. Results are capped
+    // at maxResults, so a batch can't tell "not found" from "cut off".
+    public void requeryIsbn(String isbn) {
+        sendBatch(new String[] {isbn});
+    }
+
+    private void sendBatch(String[] isbns) {
+        StringBuilder query = new StringBuilder();
+        for(int i=0; i<isbns.length; i++){
+            if(i > 0)
+                query.append("+OR+");
+            query.append("isbn:").append(isbns[i]);
+        }
+
         APIRequest r = newRequest();
         r.setHttpMethod(APIRequest.GET);
-        r.setURI(URI.create(BOOK_SEARCH_ISBN+isbn));
+        r.setLane(RequestQueue.LANE_LOOKUP);
+        r.setRetryPolicy(RetryPolicy.LOOKUP);
+        // Cancelled once nobody is waiting on any of its ISBNs, until then
+        // results for the others are just dropped.
+        String[] keys = new String[isbns.length];
+        for(int i=0; i<isbns.length; i++){
+            keys[i] = LookupCoalescer.keyFor(isbns[i]);
+        }
+        r.setTag(new RequestQueue.SharedTag(keys));
+        r.setTimeout(LOOKUP_TIMEOUT);
+        // Feeds the hedging delay
+        r.setLatencyKey(LookupCache.PROVIDER_GOOGLE_BOOKS);
+        r.setURI(URI.create(BOOK_SEARCH_ISBNS+query));
         Bundle extra = new Bundle();
-        extra.putString(GoogleBooksAPIClient.EXTRA_ISBN, isbn);
+        extra.putStringArray(GoogleBooksAPIClient.EXTRA_ISBNS, isbns);
         r.setExtra(extra);
 
         mRequestQueue.enqueue(r);
     }
 
+    // Splits a batch response into one volumes response per ISBN, using
+    // the volumes' industry identifiers. ISBNs nothing matched are absent.
+    // Identifiers must be the same book, neighbouring ISBNs of a publisher
+    // share all but their last few digits.
+    public static HashMap<String, JSONObject> splitBatchResponse(String[] isbns, String resp)
+            throws JSONException {
+        HashMap<String, JSONObject> split = new HashMap<String, JSONObject>();
+        String[] keys = new String[isbns.length];
+        for(int i=0; i<isbns.length; i++){
+            keys[i] = Util.canonicalIdentifier(isbns[i]);
+        }
+        JSONObject jsonResp = new JSONObject(resp);
+        JSONArray respItems = jsonResp.optJSONArray("items");
+        for(int i=0; respItems != null && i < respItems.length(); i++){
+            JSONObject orig = respItems.getJSONObject(i);
+            JSONObject volInfo = orig.optJSONObject("volumeInfo");
+            JSONArray identifiers = (volInfo == null) ? null :
+                    volInfo.optJSONArray("industryIdentifiers");
+            for(int k=0; k<isbns.length; k++){
+                String isbn = isbns[k];
+                boolean match = false;
+                for(int j=0; identifiers != null && j<identifiers.length(); j++){
+                    String id = identifiers.getJSONObject(j).optString("identifier");
+                    if(Util.isValidISBN(id) && Util.canonicalIdentifier(id).equals(keys[k])){
+                        match = true;
+                        break;
+                    }
+                }
+                if(!match)
+                    continue;
+                JSONObject part = split.get(isbn);
+                if(part == null){
+                    part = new JSONObject()
+                        .put("kind", jsonResp.optString("kind"))
+                        .put("items", new JSONArray());
+                    split.put(isbn, part);
+                }
+                part.getJSONArray("items").put(orig);
+            }
+        }
+        return split;
+    }
+
     public static JSONObject translateJsonResponse(String isbn, String resp){
+        try {
+            return translateJsonResponse(isbn, new JSONObject(resp));
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static JSONObject translateJsonResponse(String isbn, JSONObject jsonResp){
         // Returns empty JSONObject on failure.
         JSONObject translation = new JSONObject();
-        JSONObject jsonResp = null;
         try {
-            jsonResp = new JSONObject(resp);
 
             // Google search always returns "books#volumes"
             String kind = jsonResp.optString("kind");
@@ -98,6 +236,7 @@ public class GoogleBooksAPIClient {
                 /* Get ISBN/ISSN info */
                 String bestId = isbn;
                 String bestType = ItemField.ISBN;
+                String key = Util.canonicalIdentifier(isbn);
                 JSONArray identifiers = volInfo.optJSONArray("industryIdentifiers");
                 for(int j=0; identifiers != null && j<identifiers.length(); j++){
                     JSONObject identifier = identifiers.getJSONObject(j);
@@ -108,7 +247,7 @@ public class GoogleBooksAPIClient {
                         bestId = id;
                         if(idType.equals("ISSN")) bestType = ItemField.ISSN;
                     }
-                    if(Util.isbnMatch(id, isbn)){
+                    if(Util.canonicalIdentifier(id).equals(key)){
                         if(bestId != id && bestId.length() < id.length()){
                             bestId = id;
                             if(idType.equals("ISSN")) bestType = ItemField.ISSN;
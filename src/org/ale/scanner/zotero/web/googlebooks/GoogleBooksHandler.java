@@ -17,17 +17,25 @@
 
 package org.ale.scanner.zotero.web.googlebooks;
 
+import java.io.InputStream;
+import java.util.HashMap;
+
 import org.ale.scanner.zotero.PendingListAdapter;
+import org.ale.scanner.zotero.data.LookupCache;
 import org.ale.scanner.zotero.web.APIHandler;
 import org.ale.scanner.zotero.web.APIRequest;
 import org.apache.http.StatusLine;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 public class GoogleBooksHandler extends APIHandler{
 
     private static GoogleBooksHandler mInstance = null;
 
+    // Result for an ISBN missing from a batch, it's looked up on its own
+    private static final Object UNMATCHED = new Object();
+
     public static GoogleBooksHandler getInstance(){
         if(mInstance == null) {
             mInstance = new GoogleBooksHandler();
@@ -47,7 +55,7 @@ public class GoogleBooksHandler extends APIHandler{
     }
 
     protected void onStatusLine(APIRequest req, StatusLine status) {
-        String id = req.getExtra().getString(GoogleBooksAPIClient.EXTRA_ISBN);
+        String[] ids = req.getExtra().getStringArray(GoogleBooksAPIClient.EXTRA_ISBNS);
         int statusCode = status.getStatusCode();
         if(statusCode >= 400) {
             int errReason;
@@ -65,57 +73,87 @@ public class GoogleBooksHandler extends APIHandler{
                 errReason = PendingListAdapter.STATUS_FAILED;
                 break;
             }
-            APIHandler.MAIN.bibFetchFailure(id, errReason);
+            // In a batch we can't tell which ISBN was the bad one
+            if(statusCode == 400 && ids.length == 1)
+                cacheLookup(ids[0], LookupCache.PROVIDER_GOOGLE_BOOKS, errReason);
+            for(String id : ids){
+                APIHandler.MAIN.bibFetchFailure(id, errReason);
+            }
         }
     }
 
     protected void onException(APIRequest req, Exception exc) {
-        String id = req.getExtra().getString(GoogleBooksAPIClient.EXTRA_ISBN);
+        String[] ids = req.getExtra().getStringArray(GoogleBooksAPIClient.EXTRA_ISBNS);
         exc.printStackTrace();
         //TODO: Be more helpful here, might not be a network issue
-        APIHandler.MAIN.bibFetchFailure(id, PendingListAdapter.STATUS_NO_NETWORK);
+        for(String id : ids){
+            APIHandler.MAIN.bibFetchFailure(id, PendingListAdapter.STATUS_NO_NETWORK);
+        }
     }
 
-    protected void onSuccess(APIRequest req, final String res){
-        final String id = req.getExtra().getString(GoogleBooksAPIClient.EXTRA_ISBN);
-        new Thread(new Runnable() {
-            public void run(){
-                // Extract bibliographic information from Google's response and
-                // put it in a format we can submit to Zotero later.
-                final JSONObject translated =
-                        GoogleBooksAPIClient.translateJsonResponse(id, res);
+    protected Object parseResponse(APIRequest req, InputStream in, String charset)
+            throws Exception {
+        // Extract bibliographic information from Google's response and
+        // put it in a format we can submit to Zotero later. This runs on
+        // the request's worker thread.
+        String[] ids = req.getExtra().getStringArray(GoogleBooksAPIClient.EXTRA_ISBNS);
+        HashMap<String, Object> results = new HashMap<String, Object>();
+        String body = readString(in, charset);
+        HashMap<String, JSONObject> split = new HashMap<String, JSONObject>();
+        try {
+            if(ids.length > 1){
+                split = GoogleBooksAPIClient.splitBatchResponse(ids, body);
+            }else{
+                // Everything Google found is for this one ISBN, as it was
+                // before batching, even volumes that don't list it
+                split.put(ids[0], new JSONObject(body));
+            }
+        } catch (JSONException e) {
+            // Garbled, nothing found
+        }
 
-                final boolean failed;
-                final int reason;
-                if(translated == null) {
-                    failed = true;
-                    reason = PendingListAdapter.STATUS_NOT_FOUND;
-                }else{    
-                    JSONArray items = translated.optJSONArray("items");
-                    if(items == null){
-                        failed = true;
-                        reason = PendingListAdapter.STATUS_FAILED;
-                    }else if(items.length() == 0){
-                        failed = true;
-                        reason = PendingListAdapter.STATUS_NOT_FOUND;
-                    }else{
-                        failed = false;
-                        reason = 0; // won't be used.
-                    }
-                }
+        // Maps each ISBN to its translation, or the reason we don't have one.
+        for(String id : ids){
+            JSONObject part = split.get(id);
+            if(part == null){
+                results.put(id, (ids.length > 1) ? UNMATCHED
+                                                 : PendingListAdapter.STATUS_NOT_FOUND);
+                continue;
+            }
+            JSONObject translated = GoogleBooksAPIClient.translateJsonResponse(id, part);
+            if(translated == null){
+                results.put(id, PendingListAdapter.STATUS_NOT_FOUND);
+                continue;
+            }
+            JSONArray items = translated.optJSONArray("items");
+            if(items == null){
+                results.put(id, PendingListAdapter.STATUS_FAILED);
+            }else if(items.length() == 0){
+                results.put(id, PendingListAdapter.STATUS_NOT_FOUND);
+            }else{
+                results.put(id, translated);
+            }
+        }
+        return results;
+    }
 
-                // Since that might have taken some time, check that the 
-                // activity is still around and post the BibInfo.
-                checkActivityAndRun(new Runnable(){
-                    public void run(){
-                        if(failed){
-                            APIHandler.MAIN.bibFetchFailure(id, reason);
-                        }else{
-                            APIHandler.MAIN.bibFetchSuccess(id, translated);
-                        }
-                    }
-                });
+    @SuppressWarnings("unchecked")
+    protected void onSuccess(APIRequest req, Object res){
+        HashMap<String, Object> results = (HashMap<String, Object>) res;
+        for(String id : req.getExtra().getStringArray(GoogleBooksAPIClient.EXTRA_ISBNS)){
+            Object result = results.get(id);
+            if(result == UNMATCHED){
+                // Not necessarily missing, don't cache anything for it
+                new GoogleBooksAPIClient().requeryIsbn(id);
+                continue;
+            }
+            // Remember it for next time
+            cacheLookup(id, LookupCache.PROVIDER_GOOGLE_BOOKS, result);
+            if(result instanceof JSONObject){
+                APIHandler.MAIN.bibFetchSuccess(id, (JSONObject) result);
+            }else{
+                APIHandler.MAIN.bibFetchFailure(id, (Integer) result);
             }
-        }).start();
+        }
     }
 }
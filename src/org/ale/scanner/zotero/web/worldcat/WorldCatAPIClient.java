@@ -22,10 +22,13 @@ import java.net.URI;
 import org.ale.scanner.zotero.data.CreatorType;
 import org.ale.scanner.zotero.data.ItemField;
 import org.ale.scanner.zotero.data.ItemType;
+import org.ale.scanner.zotero.data.LookupCache;
 import org.ale.scanner.zotero.web.APIHandler;
 import org.ale.scanner.zotero.web.APIRequest;
 import org.ale.scanner.zotero.web.HttpsClient;
+import org.ale.scanner.zotero.web.LookupCoalescer;
 import org.ale.scanner.zotero.web.RequestQueue;
+import org.ale.scanner.zotero.web.RetryPolicy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -45,6 +48,9 @@ public class WorldCatAPIClient {
 
     public static final String EXTRA_ISBN = "ISBN";
 
+    // Give up on a lookup after this long (ms), including time spent queued
+    public static final long LOOKUP_TIMEOUT = 60000;
+
     public static final int STATUS_OK = 0;
     public static final int STATUS_NOT_FOUND = 1;
     public static final int STATUS_INVALID = 2;
@@ -66,9 +72,30 @@ public class WorldCatAPIClient {
         return new APIRequest(mHandler, mHttpsClient);
     }
 
-    public void isbnLookup(String isbn) {
+    // Returns false if it joined a lookup that was already in flight
+    public boolean isbnLookup(String isbn) {
+        // Share a request already in flight for the same work
+        if(!LookupCoalescer.getInstance().join(isbn))
+            return false;
+        sendIsbnLookup(isbn);
+        return true;
+    }
+
+    // Races another provider's lookup that is taking too long
+    public void hedgeIsbnLookup(String isbn) {
+        if(!LookupCoalescer.getInstance().hedge(isbn))
+            return;
+        sendIsbnLookup(isbn);
+    }
+
+    private void sendIsbnLookup(String isbn) {
         APIRequest r = newRequest();
         r.setHttpMethod(APIRequest.GET);
+        r.setLane(RequestQueue.LANE_LOOKUP);
+        r.setRetryPolicy(RetryPolicy.LOOKUP);
+        r.setTag(LookupCoalescer.keyFor(isbn));
+        r.setTimeout(LOOKUP_TIMEOUT);
+        r.setLatencyKey(LookupCache.PROVIDER_WORLDCAT);
         r.setURI(URI.create(String.format(XISBN_SEARCH, isbn)));
         Bundle extra = new Bundle();
         extra.putString(WorldCatAPIClient.EXTRA_ISBN, isbn);
@@ -78,8 +105,16 @@ public class WorldCatAPIClient {
     }
 
     public void issnLookup(String issn) {
+        // Share a request already in flight for the same work
+        if(!LookupCoalescer.getInstance().join(issn))
+            return;
         APIRequest r = newRequest();
         r.setHttpMethod(APIRequest.GET);
+        r.setLane(RequestQueue.LANE_LOOKUP);
+        r.setRetryPolicy(RetryPolicy.LOOKUP);
+        r.setTag(LookupCoalescer.keyFor(issn));
+        r.setTimeout(LOOKUP_TIMEOUT);
+        r.setLatencyKey(LookupCache.PROVIDER_WORLDCAT);
         r.setURI(URI.create(String.format(XISSN_SEARCH, issn)));
         Bundle extra = new Bundle();
         extra.putString(WorldCatAPIClient.EXTRA_ISBN, issn);
@@ -17,7 +17,10 @@
 
 package org.ale.scanner.zotero.web.worldcat;
 
+import java.io.InputStream;
+
 import org.ale.scanner.zotero.PendingListAdapter;
+import org.ale.scanner.zotero.data.LookupCache;
 import org.ale.scanner.zotero.web.APIHandler;
 import org.ale.scanner.zotero.web.APIRequest;
 import org.apache.http.StatusLine;
@@ -61,6 +64,8 @@ public class WorldCatHandler extends APIHandler{
                 errReason = PendingListAdapter.STATUS_FAILED;
                 break;
             }
+            if(statusCode == 400)
+                cacheLookup(id, LookupCache.PROVIDER_WORLDCAT, errReason);
             APIHandler.MAIN.bibFetchFailure(id, errReason);
         }
     }
@@ -72,54 +77,40 @@ public class WorldCatHandler extends APIHandler{
         APIHandler.MAIN.bibFetchFailure(id, PendingListAdapter.STATUS_NO_NETWORK);
     }
 
-    protected void onSuccess(APIRequest req, final String resp){
-        final String id = req.getExtra().getString(WorldCatAPIClient.EXTRA_ISBN);
-        new Thread(new Runnable() {
-            public void run(){
-                JSONObject jsonresp = WorldCatAPIClient.strToJSON(resp);
-                int status = WorldCatAPIClient.getStatus(jsonresp);
-                boolean failed = (status != WorldCatAPIClient.STATUS_OK);
+    protected Object parseResponse(APIRequest req, InputStream in, String charset)
+            throws Exception {
+        // Runs on the request's worker thread. Returns the translation,
+        // or the reason we don't have one.
+        String id = req.getExtra().getString(WorldCatAPIClient.EXTRA_ISBN);
+        JSONObject jsonresp = WorldCatAPIClient.strToJSON(readString(in, charset));
+        int status = WorldCatAPIClient.getStatus(jsonresp);
 
-                JSONObject tmpTrans = null;
-                if(!failed){
-                    tmpTrans = WorldCatAPIClient.translateJsonResponse(id, jsonresp);
-                    failed |= (tmpTrans == null);
-                }
+        if(status == WorldCatAPIClient.STATUS_OK){
+            JSONObject translated = WorldCatAPIClient.translateJsonResponse(id, jsonresp);
+            if(translated != null)
+                return translated;
+        }
 
-                Runnable toPost;
-                // Since that might have taken some time, check that the 
-                // activity is still around and post the BibInfo.
-                if(failed){
-                    final int reason;
-                    switch(status){
-                    case WorldCatAPIClient.STATUS_OVER_LIMIT:
-                        reason = PendingListAdapter.STATUS_QUOTA_EXCEEDED;
-                        break;
-                    case WorldCatAPIClient.STATUS_INVALID:
-                        reason = PendingListAdapter.STATUS_BAD_REQUEST;
-                        break;
-                    case WorldCatAPIClient.STATUS_NOT_FOUND:
-                        reason = PendingListAdapter.STATUS_NOT_FOUND;
-                        break;
-                    default:
-                        reason = PendingListAdapter.STATUS_FAILED;
-                        break;
-                    }
-                    toPost = new Runnable(){
-                                 public void run(){
-                                     APIHandler.MAIN.bibFetchFailure(id, reason);
-                                 }
-                             };
-                }else{
-                    final JSONObject translated = tmpTrans;
-                    toPost = new Runnable(){
-                                 public void run(){
-                                     APIHandler.MAIN.bibFetchSuccess(id, translated);
-                                 }
-                             };
-                }
-                checkActivityAndRun(toPost);
-            }
-        }).start();
+        switch(status){
+        case WorldCatAPIClient.STATUS_OVER_LIMIT:
+            return PendingListAdapter.STATUS_QUOTA_EXCEEDED;
+        case WorldCatAPIClient.STATUS_INVALID:
+            return PendingListAdapter.STATUS_BAD_REQUEST;
+        case WorldCatAPIClient.STATUS_NOT_FOUND:
+            return PendingListAdapter.STATUS_NOT_FOUND;
+        default:
+            return PendingListAdapter.STATUS_FAILED;
+        }
+    }
+
+    protected void onSuccess(APIRequest req, Object res){
+        String id = req.getExtra().getString(WorldCatAPIClient.EXTRA_ISBN);
+        // Remember it for next time
+        cacheLookup(id, LookupCache.PROVIDER_WORLDCAT, res);
+        if(res instanceof JSONObject){
+            APIHandler.MAIN.bibFetchSuccess(id, (JSONObject) res);
+        }else{
+            APIHandler.MAIN.bibFetchFailure(id, (Integer) res);
+        }
     }
 }
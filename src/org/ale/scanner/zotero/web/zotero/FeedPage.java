@@ -0,0 +1,47 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ale.scanner.zotero.web.zotero;
+
+import java.util.ArrayList;
+
+/**
+ * One page of an Atom feed: its entries, and how many the whole feed has.
+ */
+public class FeedPage<T> {
+
+    private final ArrayList<T> mEntries;
+    private final int mTotal;
+
+    public FeedPage(ArrayList<T> entries, int total){
+        mEntries = entries;
+        mTotal = total;
+    }
+
+    public ArrayList<T> getEntries(){
+        return mEntries;
+    }
+
+    // zapi:totalResults, counting every page
+    public int getTotal(){
+        return mTotal;
+    }
+
+    // Whether there are entries after this page, if it began at start
+    public boolean hasMore(int start){
+        return !mEntries.isEmpty() && start + mEntries.size() < mTotal;
+    }
+}
@@ -0,0 +1,130 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.web.zotero;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.ale.scanner.zotero.data.BibItem;
+import org.ale.scanner.zotero.data.Database;
+import org.ale.scanner.zotero.data.UploadBatch;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+/**
+ * Request body for an item upload, written straight from the database.
+ *
+ * Rows are read one at a time as the body is sent, so only one item is ever
+ * held in memory and nothing is built before the connection is ready. The
+ * rows are read again each time the body is written, which makes the entity
+ * safe to resend on a retry. If a collection key is given, every item is
+ * filed in that collection. Rows that can't be read are left out, so
+ * getSentRows() tells which row each item of the last body came from.
+ */
+public class ItemsEntity extends AbstractHttpEntity {
+
+    private static final String CHARSET = "UTF-8";
+
+    private final ContentResolver mResolver;
+    private final int[] mRows;
+    private final String mCollection;
+
+    // Rows in the order they were last written, null until then
+    private volatile int[] mSent = null;
+
+    public ItemsEntity(ContentResolver cr, int[] rows, String collection){
+        mResolver = cr;
+        mRows = rows;
+        mCollection = collection;
+        setContentType("application/json");
+        setChunked(true);
+    }
+
+    public int[] getSentRows(){
+        return mSent;
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+    // Unknown until it's written
+    public long getContentLength() {
+        return -1;
+    }
+
+    public InputStream getContent() throws IOException {
+        // Only used for logging and the like, not when sending
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        if(out == null)
+            throw new IllegalArgumentException("Output stream may not be null");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+        Cursor c = mResolver.query(Database.BIBINFO_URI, null,
+                BibItem._ID + " IN (" + UploadBatch.joinRows(mRows) + ")",
+                null, BibItem._ID + " ASC");
+        int[] sent = new int[mRows.length];
+        int nsent = 0;
+        try {
+            writer.write("{\"items\":[");
+            while(c.moveToNext()){
+                BibItem bib = BibItem.fromCursor(c);
+                if(!bib.hasInfo() || nsent == sent.length)
+                    continue;
+                if(nsent > 0)
+                    writer.write(',');
+                JSONObject item = bib.getSelectedInfo();
+                if(mCollection != null){
+                    try {
+                        item.put("collections", new JSONArray().put(mCollection));
+                    } catch (JSONException e) {
+                        // Only for non-finite numbers, can't happen here
+                    }
+                }
+                writer.write(item.toString());
+                sent[nsent++] = bib.getId();
+            }
+            writer.write("]}");
+            writer.flush();
+            int[] written = new int[nsent];
+            System.arraycopy(sent, 0, written, 0, nsent);
+            mSent = written;
+        } finally {
+            c.close();
+        }
+    }
+}
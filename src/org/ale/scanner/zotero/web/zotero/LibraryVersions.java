@@ -0,0 +1,81 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ale.scanner.zotero.web.zotero;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The last library version each library's collections, or item
+ * identifiers, were synced to. Versions are kept per account (its database
+ * id), like the rows they describe.
+ *
+ * A version is only stored once every object changed since the previous
+ * one has been written, so an interrupted sync just starts over from the
+ * last complete one.
+ */
+public class LibraryVersions {
+
+    public static final int NONE = 0;
+
+    // What was synced. Collections were the only scope at first, so theirs
+    // is the bare key.
+    public static final String SCOPE_COLLECTIONS = "";
+    public static final String SCOPE_ITEMS = ":items";
+
+    // Versions used to be kept by user id in "library_versions"
+    private static final String PREFS_NAME = "sync_versions";
+
+    private static String keyFor(int acct, int library, String scope){
+        return acct + ":" + library + scope;
+    }
+
+    public static int get(Context context, int acct, int library){
+        return get(context, acct, library, SCOPE_COLLECTIONS);
+    }
+
+    public static int get(Context context, int acct, int library, String scope){
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+        return prefs.getInt(keyFor(acct, library, scope), NONE);
+    }
+
+    public static void set(Context context, int acct, int library, int version){
+        set(context, acct, library, SCOPE_COLLECTIONS, version);
+    }
+
+    public static void set(Context context, int acct, int library,
+                           String scope, int version){
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+        prefs.edit().putInt(keyFor(acct, library, scope), version).commit();
+    }
+
+    // Forgets every version of acct's, so a new account that gets the same
+    // database id starts from scratch
+    public static void clear(Context context, int acct){
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+        String prefix = acct + ":";
+        SharedPreferences.Editor editor = prefs.edit();
+        for(String key : prefs.getAll().keySet()){
+            if(key.startsWith(prefix))
+                editor.remove(key);
+        }
+        editor.commit();
+    }
+}
@@ -0,0 +1,356 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.web.zotero;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import org.ale.scanner.zotero.data.BibItem;
+import org.ale.scanner.zotero.data.Database;
+import org.ale.scanner.zotero.data.LibraryItem;
+import org.ale.scanner.zotero.data.UploadBatch;
+import org.ale.scanner.zotero.web.RequestQueue;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+/**
+ * Moves saved items to Zotero through the outbox table.
+ *
+ * Items are first written to the outbox in batches, each with its own write
+ * token. Draining queues whatever hasn't been confirmed, oldest first, and
+ * keeps up to getParallelism() batches on the wire at once, each streaming
+ * its items from the database as it's sent. A failed batch doesn't
+ * stop the rest, and within a batch only the items the server turned down
+ * are kept back. Local items are only deleted once the server confirms
+ * them. Nothing here should run on the UI thread.
+ */
+public class Outbox {
+
+    public static final int DEFAULT_PARALLELISM = 3;
+
+    private static Outbox mInstance = null;
+
+    // Batches sent by this process that haven't been answered yet
+    private final HashSet<Long> mInFlight;
+
+    // Batches waiting for a free slot, and their ids
+    private final LinkedList<UploadBatch> mWaiting;
+    private final HashSet<Long> mQueued;
+
+    private final UploadProgress mProgress;
+
+    private int mParallelism;
+    private ZoteroAPIClient mClient;
+
+    public static synchronized Outbox getInstance(){
+        if(mInstance == null)
+            mInstance = new Outbox();
+        return mInstance;
+    }
+
+    private Outbox(){
+        mInFlight = new HashSet<Long>();
+        mWaiting = new LinkedList<UploadBatch>();
+        mQueued = new HashSet<Long>();
+        mProgress = new UploadProgress();
+        setParallelism(DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * What add() did with a selection: the batches that now hold its rows,
+     * and how many rows were left in an earlier batch bound elsewhere.
+     */
+    public static class Selection {
+        private final HashSet<Long> mBatches = new HashSet<Long>();
+        private int mHeld = 0;
+
+        public HashSet<Long> getBatches(){
+            return mBatches;
+        }
+
+        public int getHeld(){
+            return mHeld;
+        }
+    }
+
+    /**
+     * Splits rows into batches for dest and collection (a key, or null) and
+     * writes them to the outbox. A row that's already in an unfinished batch
+     * for the same place stays there, so a retry goes out under that
+     * batch's original write token and can't be committed twice. A row
+     * waiting in an unsent batch for somewhere else is moved over. One
+     * whose batch may already have reached the server can't be moved
+     * without risking a copy in both places, so it's left where it is and
+     * counted as held.
+     */
+    public Selection add(ContentResolver cr, int acct, int dest, String collection,
+                         int[] rows){
+        Selection selection = new Selection();
+        HashSet<Integer> wanted = new HashSet<Integer>();
+        for(int row : rows){
+            wanted.add(Integer.valueOf(row));
+        }
+        HashSet<Integer> placed = new HashSet<Integer>();
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        // Held throughout so pump() can't pick up a batch while it's narrowed
+        synchronized(this){
+            for(UploadBatch batch : UploadBatch.loadUnfinished(cr, acct)){
+                ArrayList<Integer> picked = new ArrayList<Integer>();
+                ArrayList<Integer> kept = new ArrayList<Integer>();
+                for(int row : batch.getRows()){
+                    Integer r = Integer.valueOf(row);
+                    if(wanted.contains(r))
+                        picked.add(r);
+                    else
+                        kept.add(r);
+                }
+                if(picked.isEmpty())
+                    continue;
+
+                Long id = Long.valueOf(batch.getId());
+                if(batch.goesTo(dest, collection)){
+                    selection.mBatches.add(id);
+                    placed.addAll(picked);
+                }else if(batch.getStatus() != UploadBatch.STATUS_PENDING
+                        || mQueued.contains(id) || mInFlight.contains(id)){
+                    selection.mHeld += picked.size();
+                    placed.addAll(picked);
+                }else if(kept.isEmpty()){
+                    ops.add(UploadBatch.deleteOp(batch.getId()));
+                }else{
+                    int[] left = new int[kept.size()];
+                    for(int i=0; i<left.length; i++){
+                        left[i] = kept.get(i).intValue();
+                    }
+                    ops.add(UploadBatch.narrowOp(batch.getId(), left));
+                }
+            }
+            if(!ops.isEmpty())
+                Database.runBatch(cr, ops);
+        }
+
+        int[] fresh = new int[rows.length];
+        int nfresh = 0;
+        for(int row : rows){
+            if(!placed.contains(Integer.valueOf(row)))
+                fresh[nfresh++] = row;
+        }
+        for(int start=0; start<nfresh; start+=ZoteroAPIClient.MAX_UPLOAD_CNT){
+            int len = Math.min(ZoteroAPIClient.MAX_UPLOAD_CNT, nfresh - start);
+            int[] batchRows = new int[len];
+            System.arraycopy(fresh, start, batchRows, 0, len);
+            UploadBatch batch = new UploadBatch(acct, dest, collection, batchRows,
+                    ZoteroAPIClient.newWriteToken());
+            batch.writeToDB(cr);
+            selection.mBatches.add(Long.valueOf(batch.getId()));
+        }
+        return selection;
+    }
+
+    /**
+     * Queues every unconfirmed batch of acct's that isn't already waiting or
+     * on its way, and starts sending. Batches that failed earlier are left
+     * for send(). Returns how many were queued.
+     */
+    public int drain(ContentResolver cr, ZoteroAPIClient client, int acct){
+        return queue(cr, client, acct, null);
+    }
+
+    /**
+     * Like drain(), but only for the given batches, failed ones included.
+     */
+    public int send(ContentResolver cr, ZoteroAPIClient client, int acct,
+                    HashSet<Long> batches){
+        return queue(cr, client, acct, batches);
+    }
+
+    private int queue(ContentResolver cr, ZoteroAPIClient client, int acct,
+                      HashSet<Long> only){
+        int queued = 0;
+        synchronized(this){
+            mClient = client;
+            // A new run starts counting from zero
+            if(isIdle())
+                mProgress.reset();
+            for(UploadBatch batch : UploadBatch.loadUnfinished(cr, acct)){
+                Long id = Long.valueOf(batch.getId());
+                if(only == null){
+                    if(batch.getStatus() == UploadBatch.STATUS_FAILED)
+                        continue;
+                }else if(!only.contains(id)){
+                    continue;
+                }
+                if(mInFlight.contains(id) || !mQueued.add(id))
+                    continue;
+                mWaiting.add(batch);
+                mProgress.queued(batch.getRows().length);
+                queued++;
+            }
+        }
+        pump(cr);
+        return queued;
+    }
+
+    // Sends waiting batches until the window is full
+    private void pump(ContentResolver cr){
+        while(true){
+            UploadBatch batch;
+            ZoteroAPIClient client;
+            synchronized(this){
+                if(mWaiting.isEmpty() || mInFlight.size() >= mParallelism)
+                    return;
+                batch = mWaiting.poll();
+                mQueued.remove(batch.getId());
+                mInFlight.add(batch.getId());
+                client = mClient;
+            }
+
+            // Items deleted since the batch was made are left out
+            ArrayList<Integer> present = findPresent(cr, batch.getRows());
+            if(present.isEmpty()){
+                UploadBatch.delete(cr, batch.getId());
+                synchronized(this){
+                    mInFlight.remove(batch.getId());
+                }
+                mProgress.dropped(batch.getRows().length);
+                continue;
+            }
+            int[] rows = new int[present.size()];
+            for(int i=0; i<rows.length; i++){
+                rows[i] = present.get(i).intValue();
+            }
+            mProgress.dropped(batch.getRows().length - rows.length);
+            mProgress.sent(rows.length);
+
+            UploadBatch.setStatus(cr, batch.getId(), UploadBatch.STATUS_SENDING);
+            // The body itself is read from the database as it's sent
+            client.addItems(new ItemsEntity(cr, rows, batch.getCollection()),
+                    rows, batch);
+        }
+    }
+
+    public boolean hasUnfinished(ContentResolver cr, int acct){
+        return UploadBatch.loadUnfinished(cr, acct).size() > 0;
+    }
+
+    /**
+     * Settles a batch the server answered item by item. Committed rows are
+     * deleted, and their identifiers are recorded under keys (the Zotero
+     * item keys, null where the server didn't say) in acct's copy of
+     * library, so they count as duplicates before the next sync. Rejected
+     * rows stay on the device, and the rest are put back in the outbox
+     * under a fresh write token until it is sent again. reason is why the
+     * items that didn't make it failed.
+     */
+    public void settle(ContentResolver cr, long batchId, int acct, int library,
+                       int[] committed, String[] keys, int[] retry, int[] rejected,
+                       Integer reason){
+        // All or nothing, so the batch's spent token is never resent for
+        // rows that didn't make it
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        if(retry.length > 0)
+            ops.add(UploadBatch.reissueOp(batchId, retry, ZoteroAPIClient.newWriteToken()));
+        else
+            ops.add(UploadBatch.deleteOp(batchId));
+        if(committed.length > 0){
+            // Read before the rows go
+            String[][] idents = BibItem.loadIdentifiers(cr, committed);
+            ArrayList<LibraryItem> items = new ArrayList<LibraryItem>(committed.length);
+            for(int i=0; i<committed.length; i++){
+                if(keys[i] != null)
+                    items.add(new LibraryItem(keys[i], idents[i]));
+            }
+            ops.addAll(LibraryItem.replaceOps(acct, library, items, false));
+            ops.add(deleteItemsOp(committed));
+        }
+        Database.runBatch(cr, ops);
+        synchronized(this){
+            mInFlight.remove(batchId);
+        }
+        mProgress.succeeded(committed.length);
+        int failed = retry.length + rejected.length;
+        if(failed > 0)
+            mProgress.failed(failed, reason);
+        pump(cr);
+    }
+
+    // A batch that can never succeed as it is (bad data, no permission)
+    // is dropped, and its items stay on the device. Anything else is kept
+    // until it is sent again. Either way the remaining batches carry on.
+    public void fail(ContentResolver cr, long batchId, int[] rows,
+                     boolean permanent, Integer reason){
+        if(permanent)
+            UploadBatch.delete(cr, batchId);
+        else
+            UploadBatch.setStatus(cr, batchId, UploadBatch.STATUS_FAILED);
+        synchronized(this){
+            mInFlight.remove(batchId);
+        }
+        mProgress.failed(rows.length, reason);
+        pump(cr);
+    }
+
+    public synchronized boolean isIdle(){
+        return mWaiting.isEmpty() && mInFlight.isEmpty();
+    }
+
+    public UploadProgress getProgress(){
+        return mProgress.snapshot();
+    }
+
+    /* Tuning */
+    public void setParallelism(int batches){
+        if(batches < 1)
+            throw new IllegalArgumentException("Parallelism must be positive");
+        synchronized(this){
+            mParallelism = batches;
+        }
+        // Otherwise the extra batches would only wait in the request queue
+        RequestQueue queue = RequestQueue.getInstance();
+        if(queue.getLaneCapacity(RequestQueue.LANE_UPLOAD) < batches)
+            queue.setLaneCapacity(RequestQueue.LANE_UPLOAD, batches);
+    }
+
+    public synchronized int getParallelism(){
+        return mParallelism;
+    }
+
+    private static ContentProviderOperation deleteItemsOp(int[] rows){
+        return ContentProviderOperation.newDelete(Database.BIBINFO_URI)
+                .withSelection(BibItem._ID + " IN (" + UploadBatch.joinRows(rows) + ")", null)
+                .build();
+    }
+
+    private static ArrayList<Integer> findPresent(ContentResolver cr, int[] rows){
+        Cursor c = cr.query(Database.BIBINFO_URI, new String[]{BibItem._ID},
+                BibItem._ID + " IN (" + UploadBatch.joinRows(rows) + ")", null,
+                BibItem._ID + " ASC");
+        ArrayList<Integer> present = new ArrayList<Integer>(c.getCount());
+        try {
+            while(c.moveToNext()){
+                present.add(Integer.valueOf(c.getInt(0)));
+            }
+        } finally {
+            c.close();
+        }
+        return present;
+    }
+}
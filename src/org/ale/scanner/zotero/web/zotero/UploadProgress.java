@@ -0,0 +1,114 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.web.zotero;
+
+/**
+ * Item counts for one upload run, summed over all of its batches.
+ *
+ * Items move from waiting to in flight when their batch is sent, and from
+ * in flight to done or failed when it is answered. The run is finished once
+ * nothing is waiting or in flight.
+ */
+public class UploadProgress {
+
+    private int mTotal;
+    private int mDone;
+    private int mFailed;
+    private int mInFlight;
+
+    // Why the most recent batch failed, as a string resource
+    private Integer mLastFailure;
+
+    public UploadProgress(){
+        reset();
+    }
+
+    private UploadProgress(UploadProgress other){
+        mTotal = other.mTotal;
+        mDone = other.mDone;
+        mFailed = other.mFailed;
+        mInFlight = other.mInFlight;
+        mLastFailure = other.mLastFailure;
+    }
+
+    public synchronized void reset(){
+        mTotal = 0;
+        mDone = 0;
+        mFailed = 0;
+        mInFlight = 0;
+        mLastFailure = null;
+    }
+
+    synchronized void queued(int items){
+        mTotal += items;
+    }
+
+    // Some of a batch's items were deleted before it was sent
+    synchronized void dropped(int items){
+        mTotal -= items;
+    }
+
+    synchronized void sent(int items){
+        mInFlight += items;
+    }
+
+    synchronized void succeeded(int items){
+        mInFlight -= items;
+        mDone += items;
+    }
+
+    synchronized void failed(int items, Integer reason){
+        mInFlight -= items;
+        mFailed += items;
+        if(reason != null)
+            mLastFailure = reason;
+    }
+
+    // A consistent copy that's safe to hand to the UI thread
+    public synchronized UploadProgress snapshot(){
+        return new UploadProgress(this);
+    }
+
+    public synchronized int getTotal(){
+        return mTotal;
+    }
+
+    public synchronized int getDone(){
+        return mDone;
+    }
+
+    public synchronized int getFailed(){
+        return mFailed;
+    }
+
+    public synchronized int getInFlight(){
+        return mInFlight;
+    }
+
+    public synchronized int getWaiting(){
+        return mTotal - mDone - mFailed - mInFlight;
+    }
+
+    public synchronized Integer getLastFailure(){
+        return mLastFailure;
+    }
+
+    public synchronized boolean isFinished(){
+        return mDone + mFailed >= mTotal;
+    }
+}
@@ -0,0 +1,89 @@
+/** 
+ * Copyright 2011 John M. Schanck
+ * 
+ * ScannerForZotero is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ScannerForZotero is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ScannerForZotero.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ale.scanner.zotero.web.zotero;
+
+/**
+ * What became of each item in a multi-item write, by position in the
+ * request body.
+ */
+public class WriteResult {
+
+    public static final int CREATED = 0;
+    public static final int UNCHANGED = 1;
+    public static final int FAILED = 2;
+
+    private final int[] mOutcomes;
+    private final String[] mKeys;
+    private final int[] mCodes;
+    private final String[] mMessages;
+
+    // Every item starts out failed with no code, for positions the
+    // response doesn't mention
+    public WriteResult(int count){
+        mOutcomes = new int[count];
+        mKeys = new String[count];
+        mCodes = new int[count];
+        mMessages = new String[count];
+        for(int i=0; i<count; i++){
+            mOutcomes[i] = FAILED;
+        }
+    }
+
+    void created(int index, String key){
+        mOutcomes[index] = CREATED;
+        mKeys[index] = key;
+    }
+
+    void unchanged(int index, String key){
+        mOutcomes[index] = UNCHANGED;
+        mKeys[index] = key;
+    }
+
+    void failed(int index, int code, String message){
+        mOutcomes[index] = FAILED;
+        mCodes[index] = code;
+        mMessages[index] = message;
+    }
+
+    public int size(){
+        return mOutcomes.length;
+    }
+
+    public int getOutcome(int index){
+        return mOutcomes[index];
+    }
+
+    // The item is on the server, whether or not this write changed it
+    public boolean isCommitted(int index){
+        return mOutcomes[index] != FAILED;
+    }
+
+    // Zotero item key, or null if the item failed
+    public String getKey(int index){
+        return mKeys[index];
+    }
+
+    // HTTP-style status of a failed item, 0 if the server didn't say
+    public int getCode(int index){
+        return mCodes[index];
+    }
+
+    public String getMessage(int index){
+        return mMessages[index];
+    }
+}
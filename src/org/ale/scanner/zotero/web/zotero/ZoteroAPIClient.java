@@ -17,38 +17,38 @@
 
 package org.ale.scanner.zotero.web.zotero;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
 import java.net.URI;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
 import java.util.Map.Entry;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
 import org.ale.scanner.zotero.R;
 import org.ale.scanner.zotero.data.Access;
 import org.ale.scanner.zotero.data.Account;
+import org.ale.scanner.zotero.data.Collection;
 import org.ale.scanner.zotero.data.Group;
+import org.ale.scanner.zotero.data.LibraryItem;
+import org.ale.scanner.zotero.data.UploadBatch;
 import org.ale.scanner.zotero.web.APIRequest;
 import org.ale.scanner.zotero.web.HttpsClient;
 import org.ale.scanner.zotero.web.RequestQueue;
+import org.ale.scanner.zotero.web.RetryPolicy;
+import org.ale.scanner.zotero.web.ValidatorStore;
+import org.apache.http.HttpEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.os.Bundle;
 import android.text.TextUtils;
+import android.util.Xml;
 
 public class ZoteroAPIClient {
     //private static final String CLASS_TAG = ZoteroAPIClient.class.getCanonicalName();
@@ -57,9 +57,25 @@ public class ZoteroAPIClient {
     public static final int GROUPS = 1;
     public static final int ITEMS = 2;
     public static final int PERMISSIONS = 3;
+    public static final int SYNC_COLLECTIONS = 4;
+    public static final int DELETED = 5;
+    public static final int IDENTIFIERS = 6;
 
     public static final String EXTRA_REQ_TYPE = "RT";
     public static final String EXTRA_ITEM_IDS = "IDS";
+    public static final String EXTRA_ACCOUNT = "ACCT";
+    public static final String EXTRA_BATCH_ID = "BATCH";
+    public static final String EXTRA_START = "START";
+    public static final String EXTRA_LIBRARY = "LIB";
+    public static final String EXTRA_SINCE = "SINCE";
+    public static final String EXTRA_VERSION = "VER";
+    public static final String EXTRA_SYNC = "SYNC"; // What a DELETED request is for
+    public static final String EXTRA_GROUPS_SEEN = "SEEN"; // On earlier pages
+
+    // Entries per page of a feed, the API allows up to 99
+    public static final int PAGE_SIZE = 50;
+    // Item pages are only skimmed for identifiers, so take as many as we can
+    public static final int ITEM_PAGE_SIZE = 99;
 
     private static final String ZOTERO_BASE_URL = "https://api.zotero.org";
     private static final String ZOTERO_USERS_URL = ZOTERO_BASE_URL + "/users";
@@ -67,6 +83,15 @@ public class ZoteroAPIClient {
 
     private static final String HDR_WRITE_TOKEN = "X-Zotero-Write-Token";
 
+    // Versioned sync (newer=, Last-Modified-Version, /deleted) needs v2
+    private static final String HDR_API_VERSION = "Zotero-API-Version";
+    private static final String SYNC_API_VERSION = "2";
+
+    // One generator for the whole process, seeding is expensive
+    private static final SecureRandom TOKEN_RNG = new SecureRandom();
+    private static final int WRITE_TOKEN_BYTES = 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     public static final int MAX_UPLOAD_CNT = 50;
 
     public static final Integer UPLOADING =  Integer.valueOf(R.string.uploading);
@@ -74,6 +99,7 @@ public class ZoteroAPIClient {
     public static final Integer FAILURE_REASON_SERV_ERR = Integer.valueOf(R.string.failure_reason_serv_err);
     public static final Integer FAILURE_REASON_BAD_DATA = Integer.valueOf(R.string.failure_reason_bad_data);
     public static final Integer FAILURE_REASON_PERMISSION = Integer.valueOf(R.string.failure_reason_perm);
+    public static final Integer FAILURE_REASON_UNCONFIRMED = Integer.valueOf(R.string.failure_reason_unconfirmed);
 
     private Account mAccount;
 
@@ -83,6 +109,9 @@ public class ZoteroAPIClient {
 
     private ZoteroHandler mHandler;
 
+    // Null sends every request unconditionally
+    private ValidatorStore mValidators;
+
     public ZoteroAPIClient() {
         mHandler = ZoteroHandler.getInstance();
         mHttpsClient = HttpsClient.getInstance();
@@ -93,12 +122,20 @@ public class ZoteroAPIClient {
         mAccount = acct;
     }
 
+    public Account getAccount(){
+        return mAccount;
+    }
+
+    public void setValidatorStore(ValidatorStore validators){
+        mValidators = validators;
+    }
+
     public APIRequest newRequest(){
         return new APIRequest(mHandler, mHttpsClient);
     }
 
-    public void addItems(JSONObject items, int[] rows, int userOrGroupId)
-            throws UnsupportedEncodingException, IllegalArgumentException {
+    public void addItems(HttpEntity items, int[] rows, UploadBatch batch)
+            throws IllegalArgumentException {
         // POST https://apis.zotero.org/users/<userid>/items
 
         if(rows.length > ZoteroAPIClient.MAX_UPLOAD_CNT) {
@@ -107,18 +144,26 @@ public class ZoteroAPIClient {
 
         APIRequest r = newRequest();
         r.setHttpMethod(APIRequest.POST);
+        r.setLane(RequestQueue.LANE_UPLOAD);
+        r.setRetryPolicy(RetryPolicy.UPLOAD);
 
         HashMap<String, String> queryTerms = new HashMap<String,String>();
         queryTerms.put("content", "json");
         queryTerms.put("key", mAccount.getKey());
-        r.setURI(buildURI(queryTerms, String.valueOf(userOrGroupId), "items"));
+        r.setURI(buildURI(queryTerms, String.valueOf(batch.getDestination()), "items"));
 
-        r.setContent(items.toString(), "application/json");
-        r.addHeader(HDR_WRITE_TOKEN, newWriteToken());
+        r.setEntity(items);
+        r.addHeader(HDR_WRITE_TOKEN, batch.getWriteToken());
+        // v2 answers with the outcome of each item (see parseWriteResponse),
+        // and lets items be filed in collections from their JSON
+        r.addHeader(HDR_API_VERSION, SYNC_API_VERSION);
 
         Bundle extra = new Bundle();
         extra.putIntArray(EXTRA_ITEM_IDS, rows);
+        extra.putLong(EXTRA_BATCH_ID, batch.getId());
         extra.putInt(EXTRA_REQ_TYPE, ZoteroAPIClient.ITEMS);
+        extra.putInt(EXTRA_LIBRARY, libraryFor(batch.getDestination()));
+        extra.putParcelable(EXTRA_ACCOUNT, mAccount);
         r.setExtra(extra);
 
         mRequestQueue.enqueue(r);
@@ -128,25 +173,181 @@ public class ZoteroAPIClient {
         // https://apis.zotero.org/users/<userid>/keys/<apikey>
         APIRequest r = newRequest();
         r.setHttpMethod(APIRequest.GET);
-        r.setURI(buildURI(null, mAccount.getUid(), "keys", mAccount.getKey()));
+        r.setLane(RequestQueue.LANE_SYNC);
+        r.setRetryPolicy(RetryPolicy.SYNC);
+        r.setURI(getPermissionsURI());
+        // A 304 keeps the Access rows we have
+        if(mValidators != null)
+            mValidators.applyTo(r);
         Bundle extra = new Bundle();
         extra.putInt(EXTRA_REQ_TYPE, ZoteroAPIClient.PERMISSIONS);
+        // The response is checked against this account as it's parsed
+        extra.putParcelable(EXTRA_ACCOUNT, mAccount);
         r.setExtra(extra);
         mRequestQueue.enqueue(r);
     }
 
+    /**
+     * Fetches every group of the user's. The groups listing has no newer=
+     * parameter, so there is no version to sync from. Instead a listing
+     * that fits on one page is revalidated, and groups missing from a full
+     * listing are deleted.
+     */
     public void getGroups() {
-        // https://apis.zotero.org/users/<userid>/groups
+        getGroups(0, new int[0]);
+    }
+
+    // seen are the ids on the pages before start
+    public void getGroups(int start, int[] seen) {
+        // https://apis.zotero.org/users/<userid>/groups?start=<n>&limit=<n>
         APIRequest r = newRequest();
         r.setHttpMethod(APIRequest.GET);
-        r.setURI(buildURI(null, mAccount.getUid(), "groups"));
+        r.setLane(RequestQueue.LANE_SYNC);
+        r.setRetryPolicy(RetryPolicy.SYNC);
+        r.setURI(getGroupsURI(start));
+        // A 304 keeps the Group rows we have. Only the first page is ever
+        // conditional, see ZoteroHandler.handleGroups
+        if(mValidators != null && start == 0)
+            mValidators.applyTo(r);
         Bundle extra = new Bundle();
         extra.putInt(EXTRA_REQ_TYPE, ZoteroAPIClient.GROUPS);
+        extra.putInt(EXTRA_START, start);
+        extra.putIntArray(EXTRA_GROUPS_SEEN, seen);
+        // The handler asks for the next page as this account
+        extra.putParcelable(EXTRA_ACCOUNT, mAccount);
         r.setExtra(extra);
 
         mRequestQueue.enqueue(r);
     }
 
+    /**
+     * Fetches the collections in library (a group id, or
+     * Group.GROUP_LIBRARY) that changed after library version since. The
+     * handler follows up with the remaining pages and then the deletions,
+     * and records the new version once they're all stored.
+     */
+    public void syncCollections(int library, int since) {
+        getCollections(library, since, 0, -1);
+    }
+
+    // version is the library version reported with the first page, or -1
+    public void getCollections(int library, int since, int start, int version) {
+        // https://apis.zotero.org/<users|groups>/<id>/collections?newer=<v>
+        APIRequest r = newRequest();
+        r.setHttpMethod(APIRequest.GET);
+        r.setLane(RequestQueue.LANE_SYNC);
+        r.setRetryPolicy(RetryPolicy.SYNC);
+
+        HashMap<String, String> queryTerms = new HashMap<String,String>();
+        queryTerms.put("key", mAccount.getKey());
+        queryTerms.put("content", "json");
+        queryTerms.put("newer", String.valueOf(since));
+        queryTerms.put("start", String.valueOf(start));
+        queryTerms.put("limit", String.valueOf(PAGE_SIZE));
+        r.setURI(buildURI(queryTerms, personaFor(library), "collections"));
+        r.addHeader(HDR_API_VERSION, SYNC_API_VERSION);
+
+        Bundle extra = new Bundle();
+        extra.putInt(EXTRA_REQ_TYPE, ZoteroAPIClient.SYNC_COLLECTIONS);
+        extra.putInt(EXTRA_LIBRARY, library);
+        extra.putInt(EXTRA_SINCE, since);
+        extra.putInt(EXTRA_START, start);
+        extra.putInt(EXTRA_VERSION, version);
+        extra.putParcelable(EXTRA_ACCOUNT, mAccount);
+        r.setExtra(extra);
+
+        mRequestQueue.enqueue(r);
+    }
+
+    /**
+     * Fetches the identifiers of the top level items in library that
+     * changed after library version since, for duplicate detection. Like
+     * syncCollections, the handler takes care of the remaining pages and
+     * the deletions.
+     */
+    public void syncIdentifiers(int library, int since) {
+        getIdentifiers(library, since, 0, -1);
+    }
+
+    public void getIdentifiers(int library, int since, int start, int version) {
+        // https://apis.zotero.org/<users|groups>/<id>/items/top?newer=<v>
+        APIRequest r = newRequest();
+        r.setHttpMethod(APIRequest.GET);
+        r.setLane(RequestQueue.LANE_SYNC);
+        r.setRetryPolicy(RetryPolicy.SYNC);
+
+        HashMap<String, String> queryTerms = new HashMap<String,String>();
+        queryTerms.put("key", mAccount.getKey());
+        queryTerms.put("content", "json");
+        queryTerms.put("newer", String.valueOf(since));
+        queryTerms.put("start", String.valueOf(start));
+        queryTerms.put("limit", String.valueOf(ITEM_PAGE_SIZE));
+        r.setURI(buildURI(queryTerms, personaFor(library), "items", "top"));
+        r.addHeader(HDR_API_VERSION, SYNC_API_VERSION);
+
+        Bundle extra = new Bundle();
+        extra.putInt(EXTRA_REQ_TYPE, ZoteroAPIClient.IDENTIFIERS);
+        extra.putInt(EXTRA_LIBRARY, library);
+        extra.putInt(EXTRA_SINCE, since);
+        extra.putInt(EXTRA_START, start);
+        extra.putInt(EXTRA_VERSION, version);
+        extra.putParcelable(EXTRA_ACCOUNT, mAccount);
+        r.setExtra(extra);
+
+        mRequestQueue.enqueue(r);
+    }
+
+    // Objects deleted from library after version since. sync is the
+    // request type (SYNC_COLLECTIONS or IDENTIFIERS) the deletions are for.
+    public void getDeleted(int library, int since, int version, int sync) {
+        // https://apis.zotero.org/<users|groups>/<id>/deleted?newer=<v>
+        APIRequest r = newRequest();
+        r.setHttpMethod(APIRequest.GET);
+        r.setLane(RequestQueue.LANE_SYNC);
+        r.setRetryPolicy(RetryPolicy.SYNC);
+
+        HashMap<String, String> queryTerms = new HashMap<String,String>();
+        queryTerms.put("key", mAccount.getKey());
+        queryTerms.put("newer", String.valueOf(since));
+        r.setURI(buildURI(queryTerms, personaFor(library), "deleted"));
+        r.addHeader(HDR_API_VERSION, SYNC_API_VERSION);
+
+        Bundle extra = new Bundle();
+        extra.putInt(EXTRA_REQ_TYPE, ZoteroAPIClient.DELETED);
+        extra.putInt(EXTRA_SYNC, sync);
+        extra.putInt(EXTRA_LIBRARY, library);
+        extra.putInt(EXTRA_VERSION, version);
+        extra.putParcelable(EXTRA_ACCOUNT, mAccount);
+        r.setExtra(extra);
+
+        mRequestQueue.enqueue(r);
+    }
+
+    private String personaFor(int library){
+        if(library == Group.GROUP_LIBRARY)
+            return mAccount.getUid();
+        return String.valueOf(library);
+    }
+
+    // The other way around, for a user or group id
+    private int libraryFor(int persona){
+        if(String.valueOf(persona).equals(mAccount.getUid()))
+            return Group.GROUP_LIBRARY;
+        return persona;
+    }
+
+    public URI getPermissionsURI(){
+        return buildURI(null, mAccount.getUid(), "keys", mAccount.getKey());
+    }
+
+    public URI getGroupsURI(int start){
+        HashMap<String, String> queryTerms = new HashMap<String,String>();
+        queryTerms.put("key", mAccount.getKey());
+        queryTerms.put("start", String.valueOf(start));
+        queryTerms.put("limit", String.valueOf(PAGE_SIZE));
+        return buildURI(queryTerms, mAccount.getUid(), "groups");
+    }
+
     public void newCollection(String name, String parent){
         // https://apis.zotero.org/users/<userid>/collections
         JSONObject collection = new JSONObject();
@@ -156,6 +357,8 @@ public class ZoteroAPIClient {
             collection.put("parent", parent);
             APIRequest r = newRequest();
             r.setHttpMethod(APIRequest.POST);
+            r.setLane(RequestQueue.LANE_SYNC);
+            r.setRetryPolicy(RetryPolicy.SYNC);
             r.setURI(buildURI(null, mAccount.getUid(), "collections"));
             r.setContent(collection.toString(), "application/json");
             r.addHeader(HDR_WRITE_TOKEN, newWriteToken());
@@ -198,12 +401,21 @@ public class ZoteroAPIClient {
     }
 
     public static String newWriteToken(){
-        // Make 16 hex character write token
-        Random rng = new Random();
-        return Integer.toHexString(rng.nextInt()) + Integer.toHexString(rng.nextInt());
+        // Make a 32 hex character write token. Tokens are stored with their
+        // batch and reused on every retry, so they have to be unique across
+        // installs, not just likely to differ from the last one.
+        byte[] bytes = new byte[WRITE_TOKEN_BYTES];
+        synchronized(TOKEN_RNG){
+            TOKEN_RNG.nextBytes(bytes);
+        }
+        StringBuilder token = new StringBuilder(2 * bytes.length);
+        for(byte b : bytes){
+            token.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+        }
+        return token.toString();
     }
 
-    public static Access parsePermissions(String resp, Account user) {
+    public static Access parsePermissions(InputStream resp, String charset, Account user) {
         /* example:
           <key key="xxx">
           <access library="1" files="1" notes="1" write="1"/>
@@ -211,53 +423,57 @@ public class ZoteroAPIClient {
           <access group="all" write="1"/>
           </key>
          */
-        Document doc = ZoteroAPIClient.parseXML(resp);
-        if(doc == null) return null;
-
-        NodeList keys = doc.getElementsByTagName("key");
-        if(keys.getLength() == 0) return null;
-
-        Node keyNode = keys.item(0);
-        Node keyAttr = keyNode.getAttributes().getNamedItem("key");
-        if(keyAttr == null) return null;
-
-        String key = keyAttr.getNodeValue();
-        if(!key.equals(user.getKey())) return null;
-
-        NodeList accessTags = doc.getElementsByTagName("access");
-        int[] groups = new int[accessTags.getLength()];
-        int[] permissions = new int[accessTags.getLength()];
-        for(int i=0; i<accessTags.getLength(); i++){
-            permissions[i] = Access.READ;
-
-            NamedNodeMap attr = accessTags.item(i).getAttributes();
-            Node groupNode = attr.getNamedItem("group");
-            if(groupNode == null){ // Library access?
-                groupNode = attr.getNamedItem("library");
-                if(groupNode == null)
-                    return null;
-                groups[i] = Group.GROUP_LIBRARY;
-            }else{ // Individual group or all groups
-                if(groupNode.getNodeValue().equals("all"))
-                    groups[i] = Group.GROUP_ALL;
-                else
-                    groups[i] = Integer.parseInt(groupNode.getNodeValue());
-            }
 
-            Node writeNode = attr.getNamedItem("write");
-            if(writeNode != null && writeNode.getNodeValue().equals("1")){
-                permissions[i] |= Access.WRITE;
-            }
+        // Returns null for parsing errors, or if the response is for
+        // a different key.
+        try {
+            XmlPullParser xpp = newPullParser(resp, charset);
+            boolean sawKey = false;
+            ArrayList<Integer> groups = new ArrayList<Integer>();
+            ArrayList<Integer> permissions = new ArrayList<Integer>();
+            for(int event = xpp.getEventType();
+                    event != XmlPullParser.END_DOCUMENT; event = xpp.next()){
+                if(event != XmlPullParser.START_TAG)
+                    continue;
+                String name = xpp.getName();
+                if(!sawKey && name.equals("key")){
+                    sawKey = true;
+                    String key = xpp.getAttributeValue(null, "key");
+                    if(key == null || !key.equals(user.getKey()))
+                        return null;
+                }else if(name.equals("access")){
+                    int perm = Access.READ;
+                    String group = xpp.getAttributeValue(null, "group");
+                    if(group == null){ // Library access?
+                        if(xpp.getAttributeValue(null, "library") == null)
+                            return null;
+                        groups.add(Group.GROUP_LIBRARY);
+                    }else if(group.equals("all")){ // All groups
+                        groups.add(Group.GROUP_ALL);
+                    }else{ // Individual group
+                        groups.add(Integer.parseInt(group));
+                    }
 
-            Node noteNode = attr.getNamedItem("notes");
-            if(noteNode != null && noteNode.getNodeValue().equals("1")){
-                permissions[i] |= Access.NOTE;
+                    if("1".equals(xpp.getAttributeValue(null, "write")))
+                        perm |= Access.WRITE;
+                    if("1".equals(xpp.getAttributeValue(null, "notes")))
+                        perm |= Access.NOTE;
+                    permissions.add(perm);
+                }
             }
+            if(!sawKey)
+                return null;
+            return new Access(user.getDbId(), toIntArray(groups),
+                              toIntArray(permissions));
+        } catch (XmlPullParserException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return new Access(user.getDbId(), groups, permissions);
+        return null;
     }
 
-    public static Group[] parseGroups(String resp) {
+    public static FeedPage<Group> parseGroups(InputStream resp, String charset) {
         /* example:
           <!-- tons of garbage -->
             <zapi:totalResults>1</zapi:totalResults>
@@ -281,51 +497,231 @@ public class ZoteroAPIClient {
             </entry>
          */
 
-        /* Returns null for parsing errors */
-        Document doc = ZoteroAPIClient.parseXML(resp);
-        if(doc == null)
-            return null;
-
-        NodeList totalResults = doc.getElementsByTagName("zapi:totalResults");
-        if(totalResults.getLength() == 0)
-            return null;
+        /* Returns null for parsing errors. zapi:totalResults counts every
+         * page, not just this one. */
+        try {
+            XmlPullParser xpp = newPullParser(resp, charset);
+            int total = -1;
+            ArrayList<Group> groups = new ArrayList<Group>();
+
+            // Depth of the entry we're in, or -1 between entries
+            int entryDepth = -1;
+            int titles = 0, ids = 0;
+            String title = null, idUri = null;
+
+            for(int event = xpp.getEventType();
+                    event != XmlPullParser.END_DOCUMENT; event = xpp.next()){
+                if(event == XmlPullParser.START_TAG){
+                    String name = xpp.getName();
+                    if(entryDepth < 0){
+                        if(total < 0 && name.equals("zapi:totalResults")){
+                            total = parseCount(xpp.nextText());
+                            if(total < 0)
+                                return null;
+                        }else if(name.equals("entry")){
+                            entryDepth = xpp.getDepth();
+                            titles = ids = 0;
+                        }
+                    }else if(name.equals("title")){
+                        titles++;
+                        title = xpp.nextText();
+                    }else if(name.equals("id")){
+                        ids++;
+                        idUri = xpp.nextText();
+                    }
+                }else if(event == XmlPullParser.END_TAG
+                        && xpp.getDepth() == entryDepth){
+                    entryDepth = -1;
+                    if(titles != 1 || ids != 1)
+                        return null;
+                    int id = parseIdFromUri(idUri);
+                    if(id < 0)
+                        return null;
+                    groups.add(new Group(id, title));
+                }
+            }
+            if(total < 0 || groups.size() > total)
+                return null;
+            return new FeedPage<Group>(groups, total);
+        } catch (XmlPullParserException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 
-        String trStr = totalResults.item(0).getFirstChild().getNodeValue();
-        if(trStr == null || !TextUtils.isDigitsOnly(trStr))
-            return null;
+    // acct is the database id of the account syncing library
+    public static FeedPage<Collection> parseCollections(InputStream resp,
+            String charset, int acct, int library) {
+        /* example (API v2, content=json):
+            <zapi:totalResults>2</zapi:totalResults>
+            <entry>
+              <title>Reading list</title>
+              <id>http://zotero.org/users/12345/collections/ABCD2345</id>
+              <zapi:key>ABCD2345</zapi:key>
+              <zapi:version>1234</zapi:version>
+              <content type="application/json">
+                {"collectionKey":"ABCD2345","collectionVersion":1234,
+                 "name":"Reading list","parentCollection":false}
+              </content>
+            </entry>
+         */
 
-        int numGroups = Integer.parseInt(trStr);
-        Group[] groups = new Group[numGroups];
+        /* Returns null for parsing errors */
+        try {
+            XmlPullParser xpp = newPullParser(resp, charset);
+            int total = -1;
+            ArrayList<Collection> collections = new ArrayList<Collection>();
+
+            int entryDepth = -1;
+            String key = null, title = null, json = null, version = null;
+
+            for(int event = xpp.getEventType();
+                    event != XmlPullParser.END_DOCUMENT; event = xpp.next()){
+                if(event == XmlPullParser.START_TAG){
+                    String name = xpp.getName();
+                    if(entryDepth < 0){
+                        if(total < 0 && name.equals("zapi:totalResults")){
+                            total = parseCount(xpp.nextText());
+                            if(total < 0)
+                                return null;
+                        }else if(name.equals("entry")){
+                            entryDepth = xpp.getDepth();
+                            key = title = json = version = null;
+                        }
+                    }else if(name.equals("zapi:key")){
+                        key = xpp.nextText();
+                    }else if(name.equals("zapi:version")){
+                        version = xpp.nextText();
+                    }else if(name.equals("title")){
+                        title = xpp.nextText();
+                    }else if(name.equals("content")){
+                        json = xpp.nextText();
+                    }
+                }else if(event == XmlPullParser.END_TAG
+                        && xpp.getDepth() == entryDepth){
+                    entryDepth = -1;
+                    if(TextUtils.isEmpty(key))
+                        return null;
+                    String parent = null;
+                    int ver = Math.max(parseCount(version), 0);
+                    if(!TextUtils.isEmpty(json)){
+                        JSONObject data = new JSONObject(json);
+                        title = data.optString("name", title);
+                        // false for top level collections
+                        Object p = data.opt("parentCollection");
+                        if(p instanceof String)
+                            parent = (String) p;
+                        if(ver == 0)
+                            ver = data.optInt("collectionVersion", 0);
+                    }
+                    collections.add(new Collection(acct, key, library, title, parent, ver));
+                }
+            }
+            if(total < 0 || collections.size() > total)
+                return null;
+            return new FeedPage<Collection>(collections, total);
+        } catch (XmlPullParserException e) {
+            e.printStackTrace();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 
-        NodeList entries = doc.getElementsByTagName("entry");
-        if(entries.getLength() != numGroups)
-            return null;
+    public static FeedPage<LibraryItem> parseIdentifiers(InputStream resp,
+            String charset) {
+        /* example (API v2, content=json):
+            <zapi:totalResults>2</zapi:totalResults>
+            <entry>
+              <title>My Book</title>
+              <zapi:key>ABCD2345</zapi:key>
+              <content type="application/json">
+                {"itemKey":"ABCD2345","itemVersion":1234,"itemType":"book",
+                 "title":"My Book","ISBN":"0123456789 9780123456786"}
+              </content>
+            </entry>
+         */
 
-        for(int i=0; i<numGroups; i++){
-            if(entries.item(i).getNodeType() != Node.ELEMENT_NODE)
-                return null;
-            NodeList titles = ((Element) entries.item(i)).getElementsByTagName("title");
-            NodeList ids = ((Element) entries.item(i)).getElementsByTagName("id");
-            if(titles.getLength() != 1 || ids.getLength() != 1)
-                return null;
-            String title = titles.item(0).getFirstChild().getNodeValue();
-            String idUri = ids.item(0).getFirstChild().getNodeValue();
-            if(title == null || idUri == null)
-                return null;
-            int lastSeg = idUri.lastIndexOf("/");
-            if(lastSeg < 0)
-                return null;
-            String idstr = idUri.substring(lastSeg+1);
-            if(!TextUtils.isDigitsOnly(idstr))
+        /* Returns null for parsing errors. Items without an ISBN or ISSN are
+         * still returned, with no identifiers, so their old ones can be
+         * dropped. */
+        try {
+            XmlPullParser xpp = newPullParser(resp, charset);
+            int total = -1;
+            ArrayList<LibraryItem> items = new ArrayList<LibraryItem>();
+
+            int entryDepth = -1;
+            String key = null, json = null;
+
+            for(int event = xpp.getEventType();
+                    event != XmlPullParser.END_DOCUMENT; event = xpp.next()){
+                if(event == XmlPullParser.START_TAG){
+                    String name = xpp.getName();
+                    if(entryDepth < 0){
+                        if(total < 0 && name.equals("zapi:totalResults")){
+                            total = parseCount(xpp.nextText());
+                            if(total < 0)
+                                return null;
+                        }else if(name.equals("entry")){
+                            entryDepth = xpp.getDepth();
+                            key = json = null;
+                        }
+                    }else if(name.equals("zapi:key")){
+                        key = xpp.nextText();
+                    }else if(name.equals("content")){
+                        json = xpp.nextText();
+                    }
+                }else if(event == XmlPullParser.END_TAG
+                        && xpp.getDepth() == entryDepth){
+                    entryDepth = -1;
+                    if(TextUtils.isEmpty(key))
+                        return null;
+                    String[] idents = new String[0];
+                    if(!TextUtils.isEmpty(json))
+                        idents = LibraryItem.identifiersOf(new JSONObject(json));
+                    items.add(new LibraryItem(key, idents));
+                }
+            }
+            if(total < 0 || items.size() > total)
                 return null;
-            int id = Integer.parseInt(idstr);
-            groups[i] = new Group(id, title);
+            return new FeedPage<LibraryItem>(items, total);
+        } catch (XmlPullParserException e) {
+            e.printStackTrace();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public static String[] parseDeleted(String resp, int sync) throws JSONException {
+        /* example:
+          {"collections":["ABCD2345"],"items":[],"searches":[],"tags":[]}
+         */
+        String kind = (sync == IDENTIFIERS) ? "items" : "collections";
+        JSONArray keys = new JSONObject(resp).optJSONArray(kind);
+        if(keys == null)
+            return new String[0];
+        String[] result = new String[keys.length()];
+        for(int i=0; i<result.length; i++){
+            result[i] = keys.getString(i);
         }
+        return result;
+    }
 
-        return groups;
+    // Last-Modified-Version of a response, or -1
+    public static int parseVersion(String header){
+        if(header == null)
+            return -1;
+        return parseCount(header.trim());
     }
 
-    public static String parseItems(String resp) {
+    public static WriteResult parseItems(InputStream resp, String charset, int count) {
         /* example:
           <!-- tons of garbage -->
           <zapi:totalResults>1</zapi:totalResults>
@@ -372,64 +768,108 @@ public class ZoteroAPIClient {
         </feed>
          */
 
-        /* Returns null for parsing errors */
-        Document doc = ZoteroAPIClient.parseXML(resp);
-        if(doc == null)
-            return null;
-
-        NodeList totalResults = doc.getElementsByTagName("zapi:totalResults");
-        if(totalResults.getLength() == 0)
-            return null;
+        /* Returns every item as created, with its key, or null for parsing
+         * errors. Entries are in the order the items were sent. */
+        try {
+            XmlPullParser xpp = newPullParser(resp, charset);
+            int total = -1;
+            ArrayList<String> keys = new ArrayList<String>();
+            for(int event = xpp.getEventType();
+                    event != XmlPullParser.END_DOCUMENT; event = xpp.next()){
+                if(event != XmlPullParser.START_TAG)
+                    continue;
+                String name = xpp.getName();
+                if(total < 0 && name.equals("zapi:totalResults")){
+                    total = parseCount(xpp.nextText());
+                    if(total < 0)
+                        return null;
+                }else if(name.equals("zapi:key")){
+                    keys.add(xpp.nextText());
+                }
+            }
+            if(total < 0 || keys.size() != total || total != count)
+                return null;
+            WriteResult result = new WriteResult(count);
+            for(int i=0; i<count; i++){
+                result.created(i, keys.get(i));
+            }
+            return result;
+        } catch (XmlPullParserException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 
-        String trStr = totalResults.item(0).getFirstChild().getNodeValue();
-        if(trStr == null || !TextUtils.isDigitsOnly(trStr))
-            return null;
+    public static WriteResult parseWriteResponse(String resp, int count)
+            throws JSONException {
+        /* example (API v2), items are numbered by their place in the request:
+          {
+            "success" : { "0" : "ABCD2345", "2" : "BCDE3456" },
+            "unchanged" : { "3" : "CDEF4567" },
+            "failed" : {
+              "1" : { "key" : null, "code" : 400,
+                      "message" : "'title' field is too long" }
+            }
+          }
+         */
 
-        int numGroups = Integer.parseInt(trStr);
-        Group[] groups = new Group[numGroups];
+        // Positions that aren't mentioned are left failed, they'll be retried
+        JSONObject json = new JSONObject(resp);
+        WriteResult result = new WriteResult(count);
+        JSONObject success = json.optJSONObject("success");
+        JSONObject unchanged = json.optJSONObject("unchanged");
+        JSONObject failed = json.optJSONObject("failed");
+        for(int i=0; i<count; i++){
+            String index = String.valueOf(i);
+            if(success != null && success.has(index)){
+                result.created(i, success.getString(index));
+            }else if(unchanged != null && unchanged.has(index)){
+                result.unchanged(i, unchanged.getString(index));
+            }else if(failed != null && failed.has(index)){
+                JSONObject f = failed.optJSONObject(index);
+                if(f == null)
+                    result.failed(i, 0, null);
+                else
+                    result.failed(i, f.optInt("code", 0), f.optString("message", null));
+            }
+        }
+        return result;
+    }
 
-        NodeList entries = doc.getElementsByTagName("entry");
-        if(entries.getLength() != numGroups)
-            return null;
+    private static XmlPullParser newPullParser(InputStream xml, String charset)
+            throws XmlPullParserException {
+        // Tags are matched with their prefixes (zapi:key), so namespace
+        // processing stays off.
+        XmlPullParser xpp = Xml.newPullParser();
+        xpp.setInput(xml, charset);
+        return xpp;
+    }
 
-        for(int i=0; i<numGroups; i++){
-            if(entries.item(i).getNodeType() != Node.ELEMENT_NODE)
-                return null;
-            NodeList titles = ((Element) entries.item(i)).getElementsByTagName("title");
-            NodeList ids = ((Element) entries.item(i)).getElementsByTagName("id");
-            if(titles.getLength() != 1 || ids.getLength() != 1)
-                return null;
-            String title = titles.item(0).getFirstChild().getNodeValue();
-            String idUri = ids.item(0).getFirstChild().getNodeValue();
-            if(title == null || idUri == null)
-                return null;
-            int lastSeg = idUri.lastIndexOf("/");
-            if(lastSeg < 0)
-                return null;
-            String idstr = idUri.substring(lastSeg+1);
-            if(!TextUtils.isDigitsOnly(idstr))
-                return null;
-            int id = Integer.parseInt(idstr);
-            groups[i] = new Group(id, title);
+    // Returns -1 unless str is a plain non-negative number
+    private static int parseCount(String str){
+        if(TextUtils.isEmpty(str) || !TextUtils.isDigitsOnly(str))
+            return -1;
+        try {
+            return Integer.parseInt(str);
+        } catch (NumberFormatException e) {
+            return -1;
         }
+    }
 
-        return "";
+    // http://zotero.org/groups/12345 -> 12345, or -1
+    private static int parseIdFromUri(String uri){
+        if(uri == null)
+            return -1;
+        return parseCount(uri.substring(uri.lastIndexOf("/") + 1));
     }
 
-    public static Document parseXML(String xml){
-        DocumentBuilder builder = null;
-        Document doc = null;
-        try {
-            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            ByteArrayInputStream encXML = new ByteArrayInputStream(xml.getBytes("UTF8"));
-            doc = builder.parse(encXML);
-        } catch (ParserConfigurationException e) {
-            e.printStackTrace();
-        } catch (SAXException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private static int[] toIntArray(ArrayList<Integer> list){
+        int[] arr = new int[list.size()];
+        for(int i=0; i<arr.length; i++){
+            arr[i] = list.get(i).intValue();
         }
-        return doc;
+        return arr;
     }
 }
@@ -17,15 +17,25 @@
 
 package org.ale.scanner.zotero.web.zotero;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+
 import org.ale.scanner.zotero.data.Access;
 import org.ale.scanner.zotero.data.Account;
-import org.ale.scanner.zotero.data.Database;
+import org.ale.scanner.zotero.data.Collection;
 import org.ale.scanner.zotero.data.Group;
+import org.ale.scanner.zotero.data.LibraryItem;
 import org.ale.scanner.zotero.web.APIHandler;
 import org.ale.scanner.zotero.web.APIRequest;
+import org.ale.scanner.zotero.web.ValidatorStore;
 import org.apache.http.StatusLine;
+import org.json.JSONException;
 
 import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
 import android.widget.Toast;
 
 public class ZoteroHandler extends APIHandler {
@@ -35,6 +45,8 @@ public class ZoteroHandler extends APIHandler {
     // protected ArrayList<APIResponse> mResponses;
     // protected ArrayList<Runnable> mUIThreadEvents;
 
+    private static final String HDR_CONTENT_TYPE = "Content-Type";
+
     private static ZoteroHandler mInstance = null;
 
     public static ZoteroHandler getInstance(){
@@ -58,11 +70,16 @@ public class ZoteroHandler extends APIHandler {
     protected void onStatusLine(APIRequest req, StatusLine status) {
         int reqType = req.getExtra().getInt(ZoteroAPIClient.EXTRA_REQ_TYPE);
         int code = status.getStatusCode();
+        if(reqType == ZoteroAPIClient.ITEMS && code == 412){
+            // The write token was already used, so an earlier attempt at this
+            // batch got through even though we never saw the response. It
+            // may only have committed some of the items though.
+            unconfirmedBatch(req);
+        }else if(reqType == ZoteroAPIClient.ITEMS && code >= 400){
+            failBatch(req, isPermanentFailure(code), failureReason(code));
+        }
         switch(code){
         case 400: // Bad Request
-            if(reqType == ZoteroAPIClient.ITEMS){
-                APIHandler.MAIN.uploadFailure(ZoteroAPIClient.FAILURE_REASON_BAD_DATA);
-            }
             break;
         case 403: // Forbidden
             if(reqType == ZoteroAPIClient.PERMISSIONS) {
@@ -74,10 +91,6 @@ public class ZoteroHandler extends APIHandler {
                 // Maybe the key permissions changed, do a refresh
                 APIHandler.MAIN.refreshPermissions();
             }
-
-            if(reqType == ZoteroAPIClient.ITEMS) {
-                APIHandler.MAIN.uploadFailure(ZoteroAPIClient.FAILURE_REASON_PERMISSION);
-            }
             break;
         case 404: // Not Found
             if(reqType == ZoteroAPIClient.PERMISSIONS) {
@@ -86,21 +99,19 @@ public class ZoteroHandler extends APIHandler {
                 APIHandler.MAIN.postAccountPermissions(null);
             }
             break;
-        case 405: // Method Not Allowed
         case 409: // Conflict (Target library locked)
-        case 412: // Precondition failed (X-Zotero-Write-Token duplicate)
+        case 405: // Method Not Allowed
+        case 412: // Precondition failed (X-Zotero-Write-Token duplicate), see above
         case 417: // Expectation Failed
             break;
         case 413: // Request Entity Too Large
-            if(reqType == ZoteroAPIClient.ITEMS){
-                APIHandler.MAIN.uploadFailure(ZoteroAPIClient.FAILURE_REASON_BAD_DATA);
-            }
             break;
         case 500: // Internal Server Error
         case 503: // Service Unavailable
-            if(reqType == ZoteroAPIClient.ITEMS){
-                APIHandler.MAIN.uploadFailure(ZoteroAPIClient.FAILURE_REASON_SERV_ERR);
-            }
+            // Failed uploads are reported on the upload bar instead, once
+            // the remaining batches are done
+            if(reqType == ZoteroAPIClient.ITEMS)
+                break;
             Toast.makeText(
                     APIHandler.MAIN, 
                     code + ": Zotero server error, try again later.",
@@ -122,40 +133,77 @@ public class ZoteroHandler extends APIHandler {
         int rt = req.getExtra().getInt(ZoteroAPIClient.EXTRA_REQ_TYPE);
         // XXX: Might not actually be a network error.
         if(rt == ZoteroAPIClient.ITEMS){
-            APIHandler.MAIN.uploadFailure(ZoteroAPIClient.FAILURE_REASON_NETWORK);
+            failBatch(req, false, ZoteroAPIClient.FAILURE_REASON_NETWORK);
         }
         exc.printStackTrace();
     }
 
-    protected void onSuccess(APIRequest req, String resp) {
+    protected Object parseResponse(APIRequest req, InputStream in, String charset)
+            throws Exception {
+        // Parse XML feeds as they arrive, on the request's worker thread.
+        Bundle extra = req.getExtra();
+        switch(extra.getInt(ZoteroAPIClient.EXTRA_REQ_TYPE)){
+        case ZoteroAPIClient.GROUPS:
+            return ZoteroAPIClient.parseGroups(in, charset);
+        case ZoteroAPIClient.PERMISSIONS:
+            Account user = (Account) extra.getParcelable(ZoteroAPIClient.EXTRA_ACCOUNT);
+            return ZoteroAPIClient.parsePermissions(in, charset, user);
+        case ZoteroAPIClient.SYNC_COLLECTIONS:
+            Account owner = (Account) extra.getParcelable(ZoteroAPIClient.EXTRA_ACCOUNT);
+            return ZoteroAPIClient.parseCollections(in, charset, owner.getDbId(),
+                    extra.getInt(ZoteroAPIClient.EXTRA_LIBRARY));
+        case ZoteroAPIClient.IDENTIFIERS:
+            return ZoteroAPIClient.parseIdentifiers(in, charset);
+        case ZoteroAPIClient.ITEMS:
+            return parseWriteResult(req, in, charset);
+        case ZoteroAPIClient.DELETED:
+            return ZoteroAPIClient.parseDeleted(readString(in, charset),
+                    extra.getInt(ZoteroAPIClient.EXTRA_SYNC));
+        default:
+            // We don't use the body of any other response
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void onSuccess(APIRequest req, Object resp) {
         int rt = req.getExtra().getInt(ZoteroAPIClient.EXTRA_REQ_TYPE);
+        // Not Modified: what we saved from the last response still holds
+        if(req.getStatusCode() == 304)
+            return;
         switch(rt){
         case ZoteroAPIClient.COLLECTIONS:
             break;
         case ZoteroAPIClient.GROUPS:
-            handleGroups(resp);
+            handleGroups(req, (FeedPage<Group>) resp);
+            break;
+        case ZoteroAPIClient.SYNC_COLLECTIONS:
+            handleCollections(req, (FeedPage<Collection>) resp);
+            break;
+        case ZoteroAPIClient.IDENTIFIERS:
+            handleIdentifiers(req, (FeedPage<LibraryItem>) resp);
+            break;
+        case ZoteroAPIClient.DELETED:
+            handleDeleted(req, (String[]) resp);
             break;
         case ZoteroAPIClient.ITEMS:
-            int[] rows = req.getExtra().getIntArray(ZoteroAPIClient.EXTRA_ITEM_IDS);
-            handleItems(rows, resp);
+            handleItems(req, (WriteResult) resp);
             break;
         case ZoteroAPIClient.PERMISSIONS:
-            handlePermissions(resp);
+            handlePermissions(req, (Access) resp);
             break;
         }
     }
 
-    private void handlePermissions(final String xml){
+    private void handlePermissions(final APIRequest req, final Access perms){
         final ContentResolver cr = APIHandler.MAIN.getContentResolver();
-        final Account user = APIHandler.MAIN.getUserAccount();
+        final ValidatorStore validators = ValidatorStore.getInstance(APIHandler.MAIN);
 
         new Thread(new Runnable(){
             public void run() {
-                final Access perms = ZoteroAPIClient.parsePermissions(xml, user);
                 if(perms != null) {
-                    cr.delete(Database.ACCESS_URI, Access.COL_ACCT + "=?",
-                            new String[] { String.valueOf(user.getDbId()) });
-                    perms.writeToDB(cr);
+                    perms.replaceInDB(cr);
+                    validators.save(req);
 
                     checkActivityAndRun(new Runnable(){
                         public void run(){
@@ -169,44 +217,287 @@ public class ZoteroHandler extends APIHandler {
         }).start();
     }
 
-    private void handleGroups(final String xml){
-        // Write responses to database and be done with it.
+    private void handleGroups(final APIRequest req, final FeedPage<Group> page){
+        // Write responses to database, one page at a time
         final ContentResolver cr = APIHandler.MAIN.getContentResolver();
+        final ValidatorStore validators = ValidatorStore.getInstance(APIHandler.MAIN);
+        final Bundle extra = req.getExtra();
         new Thread(new Runnable(){
             public void run() {
-                final Group[] groups = ZoteroAPIClient.parseGroups(xml);
-                int howMany = 0;
-                if(groups != null){
-                    howMany = groups.length;
-                    for(int i=0; i<howMany; i++){
-                        groups[i].writeToDB(cr);
+                if(page == null)
+                    return;
+                Group.upsert(cr, page.getEntries());
+                int[] before = extra.getIntArray(ZoteroAPIClient.EXTRA_GROUPS_SEEN);
+                int[] seen = new int[before.length + page.getEntries().size()];
+                System.arraycopy(before, 0, seen, 0, before.length);
+                for(int i=before.length; i<seen.length; i++){
+                    seen[i] = page.getEntries().get(i - before.length).getId();
+                }
+                int start = extra.getInt(ZoteroAPIClient.EXTRA_START);
+                if(page.hasMore(start)){
+                    clientFor(extra).getGroups(start + page.getEntries().size(), seen);
+                    return;
+                }
+                // That was all of them, drop the groups the user has left
+                Account user = (Account) extra.getParcelable(ZoteroAPIClient.EXTRA_ACCOUNT);
+                Group.deleteMissing(cr, user.getDbId(), seen);
+                // A validator only speaks for the page it came with, so
+                // only a feed that fits on one page can be revalidated
+                if(start == 0)
+                    validators.save(req);
+                checkActivityAndRun(new Runnable(){
+                    public void run(){
+                        APIHandler.MAIN.loadGroups();
                     }
-                    checkActivityAndRun(new Runnable(){
-                        public void run(){
-                            APIHandler.MAIN.loadGroups();
-                        }
-                    });
+                });
+            }
+        }).start();
+    }
+
+    private void handleCollections(final APIRequest req,
+                                   final FeedPage<Collection> page){
+        final ContentResolver cr = APIHandler.MAIN.getContentResolver();
+        final Context context = APIHandler.MAIN;
+        new Thread(new Runnable(){
+            public void run() {
+                if(page == null) // Garbled, try again next sync
+                    return;
+                Collection.upsert(cr, page.getEntries());
+                continueSync(context, req, page, ZoteroAPIClient.SYNC_COLLECTIONS);
+            }
+        }).start();
+    }
+
+    private void handleIdentifiers(final APIRequest req,
+                                   final FeedPage<LibraryItem> page){
+        final ContentResolver cr = APIHandler.MAIN.getContentResolver();
+        final Context context = APIHandler.MAIN;
+        final Bundle extra = req.getExtra();
+        new Thread(new Runnable(){
+            public void run() {
+                if(page == null)
+                    return;
+                Account user = (Account) extra.getParcelable(ZoteroAPIClient.EXTRA_ACCOUNT);
+                // Rows left from before a sync from scratch may be stale
+                boolean fresh = extra.getInt(ZoteroAPIClient.EXTRA_START) == 0
+                        && extra.getInt(ZoteroAPIClient.EXTRA_SINCE) == LibraryVersions.NONE;
+                LibraryItem.replace(cr, user.getDbId(),
+                        extra.getInt(ZoteroAPIClient.EXTRA_LIBRARY),
+                        page.getEntries(), fresh);
+                continueSync(context, req, page, ZoteroAPIClient.IDENTIFIERS);
+            }
+        }).start();
+    }
+
+    private static void continueSync(Context context, APIRequest req,
+                                     FeedPage<?> page, int sync){
+        // Called once a page has been stored. Asks for the next page, or
+        // the deletions, or records the version if there's nothing left.
+        Bundle extra = req.getExtra();
+        int library = extra.getInt(ZoteroAPIClient.EXTRA_LIBRARY);
+        int since = extra.getInt(ZoteroAPIClient.EXTRA_SINCE);
+        int start = extra.getInt(ZoteroAPIClient.EXTRA_START);
+        // Later pages keep the first page's version, anything that
+        // changes during the sync is picked up next time
+        int version = extra.getInt(ZoteroAPIClient.EXTRA_VERSION);
+        if(version < 0){
+            version = ZoteroAPIClient.parseVersion(
+                    req.getResponseHeader(ValidatorStore.HDR_VERSION));
+        }
+
+        ZoteroAPIClient client = clientFor(extra);
+        if(page.hasMore(start)){
+            int next = start + page.getEntries().size();
+            if(sync == ZoteroAPIClient.IDENTIFIERS)
+                client.getIdentifiers(library, since, next, version);
+            else
+                client.getCollections(library, since, next, version);
+        }else if(since == LibraryVersions.NONE){
+            // First sync, there's nothing local to delete
+            if(version >= 0)
+                LibraryVersions.set(context, client.getAccount().getDbId(),
+                        library, scopeFor(sync), version);
+        }else if(version != since){
+            client.getDeleted(library, since, version, sync);
+        }
+    }
+
+    private void handleDeleted(final APIRequest req, final String[] keys){
+        final ContentResolver cr = APIHandler.MAIN.getContentResolver();
+        final Context context = APIHandler.MAIN;
+        final Bundle extra = req.getExtra();
+        new Thread(new Runnable(){
+            public void run() {
+                int library = extra.getInt(ZoteroAPIClient.EXTRA_LIBRARY);
+                int version = extra.getInt(ZoteroAPIClient.EXTRA_VERSION);
+                int sync = extra.getInt(ZoteroAPIClient.EXTRA_SYNC);
+                Account user = (Account) extra.getParcelable(ZoteroAPIClient.EXTRA_ACCOUNT);
+                if(sync == ZoteroAPIClient.IDENTIFIERS)
+                    LibraryItem.delete(cr, user.getDbId(), library, keys);
+                else
+                    Collection.delete(cr, user.getDbId(), library, keys);
+                // Everything up to version is stored now
+                if(version >= 0){
+                    LibraryVersions.set(context, user.getDbId(), library,
+                            scopeFor(sync), version);
                 }
             }
         }).start();
     }
 
-    private void handleItems(final int[] dbrows, final String xml){
+    private static String scopeFor(int sync){
+        return (sync == ZoteroAPIClient.IDENTIFIERS) ? LibraryVersions.SCOPE_ITEMS
+                                                     : LibraryVersions.SCOPE_COLLECTIONS;
+    }
+
+    private static ZoteroAPIClient clientFor(Bundle extra){
+        // Follow-up requests go out as the account that made the first one
+        ZoteroAPIClient client = new ZoteroAPIClient();
+        client.setAccount((Account) extra.getParcelable(ZoteroAPIClient.EXTRA_ACCOUNT));
+        return client;
+    }
+
+    private void failBatch(APIRequest req, final boolean permanent,
+                           final Integer reason){
+        final long batch = req.getExtra().getLong(ZoteroAPIClient.EXTRA_BATCH_ID);
+        final int[] dbrows = req.getExtra().getIntArray(ZoteroAPIClient.EXTRA_ITEM_IDS);
+        final ContentResolver cr = APIHandler.MAIN.getContentResolver();
         new Thread(new Runnable(){
             public void run() {
-                //TODO: Uncomment parseItems when we want to enable adding
-                //      items to collections
-                //final String itemIds = ZoteroAPIClient.parseItems(xml);
-                String[] srows = new String[dbrows.length];
-                for(int i=0; i<srows.length; i++){
-                    srows[i] = String.valueOf(dbrows[i]);
+                Outbox outbox = Outbox.getInstance();
+                outbox.fail(cr, batch, dbrows, permanent, reason);
+                postUploadProgress(outbox.getProgress());
+            }
+        }).start();
+    }
+
+    // We can't tell which of the batch's items the server kept. They stay
+    // on the device for the user to check and the batch isn't sent again.
+    // The library's identifiers are refreshed, so uploading the items again
+    // skips the ones that made it.
+    private void unconfirmedBatch(APIRequest req){
+        failBatch(req, true, ZoteroAPIClient.FAILURE_REASON_UNCONFIRMED);
+        checkActivityAndRun(new Runnable(){
+            public void run(){
+                APIHandler.MAIN.syncLibraries();
+            }
+        });
+    }
+
+    private void postUploadProgress(final UploadProgress progress){
+        checkActivityAndRun(new Runnable(){
+            public void run(){
+                APIHandler.MAIN.uploadProgress(progress);
+            }
+        });
+    }
+
+    private static WriteResult parseWriteResult(APIRequest req, InputStream in,
+            String charset) throws IOException {
+        // Results are numbered by position in the body that was sent, which
+        // may have left out rows that couldn't be read
+        int[] sent = ((ItemsEntity) req.getEntity()).getSentRows();
+        if(sent == null)
+            return null;
+        String type = req.getResponseHeader(HDR_CONTENT_TYPE);
+        if(type != null && type.contains("json")){
+            try {
+                return ZoteroAPIClient.parseWriteResponse(readString(in, charset),
+                        sent.length);
+            } catch (JSONException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        // An Atom feed only ever lists created items
+        return ZoteroAPIClient.parseItems(in, charset, sent.length);
+    }
+
+    private void handleItems(final APIRequest req, final WriteResult result){
+        final long batch = req.getExtra().getLong(ZoteroAPIClient.EXTRA_BATCH_ID);
+        final int[] dbrows = req.getExtra().getIntArray(ZoteroAPIClient.EXTRA_ITEM_IDS);
+        final int library = req.getExtra().getInt(ZoteroAPIClient.EXTRA_LIBRARY);
+        final Account user = (Account) req.getExtra().getParcelable(ZoteroAPIClient.EXTRA_ACCOUNT);
+        if(result == null){
+            // The server took the batch but we can't tell what it made of
+            // each item. Retrying under a new token could duplicate them all.
+            unconfirmedBatch(req);
+            return;
+        }
+        final int[] sent = ((ItemsEntity) req.getEntity()).getSentRows();
+        final ContentResolver cr = APIHandler.MAIN.getContentResolver();
+        new Thread(new Runnable(){
+            public void run() {
+                HashSet<Integer> unsent = new HashSet<Integer>();
+                for(int row : dbrows){
+                    unsent.add(Integer.valueOf(row));
+                }
+                ArrayList<Integer> committed = new ArrayList<Integer>();
+                ArrayList<String> keys = new ArrayList<String>();
+                ArrayList<Integer> retry = new ArrayList<Integer>();
+                ArrayList<Integer> rejected = new ArrayList<Integer>();
+                Integer reason = null;
+                for(int i=0; i<sent.length; i++){
+                    Integer row = Integer.valueOf(sent[i]);
+                    unsent.remove(row);
+                    if(result.isCommitted(i)){
+                        committed.add(row);
+                        keys.add(result.getKey(i));
+                        continue;
+                    }
+                    int code = result.getCode(i);
+                    if(isPermanentFailure(code))
+                        rejected.add(row);
+                    else
+                        retry.add(row);
+                    if(reason == null)
+                        reason = failureReason(code);
                 }
+                // Couldn't be read, or deleted since the batch was sent
+                if(!unsent.isEmpty()){
+                    rejected.addAll(unsent);
+                    if(reason == null)
+                        reason = ZoteroAPIClient.FAILURE_REASON_BAD_DATA;
+                }
+
+                final int[] done = toIntArray(committed);
+                Outbox outbox = Outbox.getInstance();
+                outbox.settle(cr, batch, user.getDbId(), library, done,
+                        keys.toArray(new String[keys.size()]), toIntArray(retry),
+                        toIntArray(rejected), reason);
                 checkActivityAndRun(new Runnable(){
                     public void run(){
-                        APIHandler.MAIN.uploadSuccess(dbrows);
+                        APIHandler.MAIN.uploadSuccess(done);
                     }
                 });
+                postUploadProgress(outbox.getProgress());
             }
         }).start();
     }
+
+    // Bad data and missing permissions won't fix themselves
+    private static boolean isPermanentFailure(int code){
+        return code == 400 || code == 403 || code == 413;
+    }
+
+    private static Integer failureReason(int code){
+        switch(code){
+        case 400: // Bad Request
+        case 413: // Request Entity Too Large
+            return ZoteroAPIClient.FAILURE_REASON_BAD_DATA;
+        case 403: // Forbidden
+            return ZoteroAPIClient.FAILURE_REASON_PERMISSION;
+        default: // Includes 409, still locked after the retry policy gave up
+            return ZoteroAPIClient.FAILURE_REASON_SERV_ERR;
+        }
+    }
+
+    private static int[] toIntArray(java.util.Collection<Integer> list){
+        int[] arr = new int[list.size()];
+        int i = 0;
+        for(Integer n : list){
+            arr[i++] = n.intValue();
+        }
+        return arr;
+    }
 }